@@ -1,8 +1,13 @@
 package org.rowland.jinix.coreutilities.cat;
 
 import org.apache.commons.cli.*;
+import org.rowland.jinix.coreutilities.gziputils.GzipUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.Properties;
 
@@ -12,74 +17,230 @@ import java.util.Properties;
  */
 public class Cat {
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_MMAP_THRESHOLD = 8 * 1024 * 1024;
+    private static final long MMAP_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_PREFETCH_DEPTH = 4;
+    private static final int PREFETCH_BUFFER_SIZE = 256 * 1024;
+
     public static void main(String[] args) {
 
         CommandLine cmdLine = parseCommandLineOptions(args);
         if (cmdLine == null) return;
 
         args = cmdLine.getArgs();
-        int c, i = 0;
-        int lineCounter = 1;
-        int prevChar = 0;
-        byte[] lineBuffer = new byte[2048];
+        byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+        LineTransformer transformer = null;
+        if (cmdLine.hasOption("n") || cmdLine.hasOption("E")) {
+            transformer = new LineTransformer(System.out, cmdLine.hasOption("n"), cmdLine.hasOption("E"),
+                    COPY_BUFFER_SIZE);
+        }
+        long mmapThreshold = DEFAULT_MMAP_THRESHOLD;
+        if (cmdLine.hasOption("mmap-threshold")) {
+            try {
+                mmapThreshold = Long.parseLong(cmdLine.getOptionValue("mmap-threshold"));
+            } catch (NumberFormatException e) {
+                System.err.println("cat: invalid mmap threshold: "+cmdLine.getOptionValue("mmap-threshold"));
+                return;
+            }
+        }
 
-        for (String arg : args) {
-            InputStream is = null;
+        int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+        if (cmdLine.hasOption("prefetch")) {
             try {
-                if (arg.equals("-")) {
-                    is = new BufferedInputStream(System.in);
-                } else {
-                    File f = new File(arg);
-                    if (f.isDirectory()) {
-                        System.err.println("cat: "+arg+": Is a directory");
-                        continue;
-                    }
-                    is = new BufferedInputStream(new FileInputStream(f));
-                }
+                prefetchDepth = Integer.parseInt(cmdLine.getOptionValue("prefetch"));
+            } catch (NumberFormatException e) {
+                System.err.println("cat: invalid prefetch depth: "+cmdLine.getOptionValue("prefetch"));
+                return;
+            }
+        }
 
-                i = 0;
-                while ((c = is.read()) > -1) {
-                    if (prevChar == 0x0a && cmdLine.hasOption("n")) {
-                        System.out.print(String.format("% 10d: ",lineCounter++));
-                    }
+        boolean decompress = cmdLine.hasOption("z");
+        int decompressThreads = Runtime.getRuntime().availableProcessors();
 
-                    if(c == 0x0a && cmdLine.hasOption("E")) {
-                        lineBuffer[i++] = '$';
-                    }
+        FilePrefetcher prefetcher = null;
+        if (prefetchDepth > 0 && args.length > 1) {
+            prefetcher = new FilePrefetcher(args, prefetchDepth, PREFETCH_BUFFER_SIZE);
+        }
 
-                    if (lineCounter==1 && cmdLine.hasOption("n")) {
-                        System.out.print(String.format("% 10d: ",lineCounter++));
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                InputStream is = null;
+                try {
+                    if (arg.equals("-")) {
+                        is = System.in;
+                        if (decompress) {
+                            is = GzipUtils.decompressIfGzip(is, decompressThreads);
+                        }
+                    } else {
+                        FilePrefetcher.PrefetchedFile pf =
+                                (prefetcher != null ? prefetcher.take(i) : FilePrefetcher.open(arg));
+                        if (pf.directory) {
+                            System.err.println("cat: "+arg+": Is a directory");
+                            continue;
+                        }
+                        is = pf.is;
+                        if (decompress && isGzip(pf)) {
+                            InputStream compressed = pf.is;
+                            if (pf.head != null) {
+                                byte[] head = new byte[pf.head.remaining()];
+                                pf.head.get(head);
+                                prefetcher.release(pf.head);
+                                compressed = new SequenceInputStream(new ByteArrayInputStream(head), pf.is);
+                            }
+                            is = GzipUtils.decompress(compressed, decompressThreads);
+                            if (!copyBlocks(is, copyBuffer, transformer)) {
+                                System.err.println("cat: IOException writing output");
+                                return;
+                            }
+                            continue;
+                        }
+                        if (pf.head != null) {
+                            boolean written;
+                            try {
+                                written = copyBuffer(pf.head, copyBuffer, transformer);
+                            } finally {
+                                prefetcher.release(pf.head);
+                            }
+                            if (!written) {
+                                System.err.println("cat: IOException writing output");
+                                return;
+                            }
+                            if (pf.eof) {
+                                continue;
+                            }
+                        }
+                        if (mmapThreshold >= 0 && pf.length >= mmapThreshold) {
+                            FileChannel channel = pf.is.getChannel();
+                            if (!copyMapped(channel, channel.position(), copyBuffer, transformer)) {
+                                System.err.println("cat: IOException writing output");
+                                return;
+                            }
+                            continue;
+                        }
                     }
 
-                    lineBuffer[i++] = (byte) c;
-
-                    if (c == 0x0a || i == 2048) {
-                        System.out.write(lineBuffer, 0, i);
-                        if (System.out.checkError()) {
-                            System.err.println("cat: IOException writing output");
-                            is.close();
-                            return;
-                        }
-                        i=0;
+                    if (!copyBlocks(is, copyBuffer, transformer)) {
+                        System.err.println("cat: IOException writing output");
+                        return;
                     }
-                    prevChar = c;
-                }
-            } catch (FileNotFoundException e) {
-                System.err.println("cat: "+arg+": No such file or directory");
-            } catch (IOException e) {
-                System.err.println("cat: "+arg+": IOException reading input: "+e.getMessage());
-            } finally {
-                if (i > 0) {
-                    System.out.write(lineBuffer, 0, i);
-                }
-                System.out.flush();
-                try {
-                    if (is != null) is.close();
+                } catch (FileNotFoundException e) {
+                    System.err.println("cat: "+arg+": No such file or directory");
                 } catch (IOException e) {
-                    System.err.println("cat: "+arg+" IOException closing input stream");
+                    System.err.println("cat: "+arg+": IOException reading input: "+e.getMessage());
+                } finally {
+                    if (transformer != null) {
+                        transformer.flush();
+                    }
+                    System.out.flush();
+                    try {
+                        if (is != null) is.close();
+                    } catch (IOException e) {
+                        System.err.println("cat: "+arg+" IOException closing input stream");
+                    }
                 }
             }
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Return true if the file starts with the gzip magic number, looking at its prefetched head
+     * if it has one, and otherwise reading without moving the file position.
+     */
+    private static boolean isGzip(FilePrefetcher.PrefetchedFile pf) throws IOException {
+        if (pf.head != null) {
+            return GzipUtils.isGzip(pf.head);
+        }
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        pf.is.getChannel().read(magic, 0);
+        magic.flip();
+        return GzipUtils.isGzip(magic);
+    }
+
+    /**
+     * Copy the input stream to standard output a block at a time. When no line transformation
+     * has been requested, blocks are written unchanged so that bytes do not have to be examined
+     * individually. Otherwise each block is handed to the transformer.
+     *
+     * @return false if an error occurred writing to standard output
+     */
+    private static boolean copyBlocks(InputStream is, byte[] buffer, LineTransformer transformer) throws IOException {
+        int br;
+        while ((br = is.read(buffer)) > -1) {
+            if (!writeBlock(buffer, br, transformer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy a regular file to standard output through a read only mapping that slides over the
+     * file a window at a time. This avoids the read system calls and stream buffering of
+     * copyBlocks() for large files. The size of the file is read again before each window is
+     * mapped, and whatever follows the last window is read from the channel, so a file that
+     * grows while it is copied is copied to its end, as is a file that reports a size of 0, such
+     * as those in /proc. If the file system does not support mapping, the file is read from the
+     * channel instead.
+     *
+     * @return false if an error occurred writing to standard output
+     */
+    private static boolean copyMapped(FileChannel channel, long position, byte[] buffer,
+                                      LineTransformer transformer) throws IOException {
+        long size;
+        while ((size = channel.size()) > position) {
+            MappedByteBuffer window;
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MMAP_WINDOW_SIZE, size - position));
+            } catch (UnsupportedOperationException e) {
+                break;
+            }
+            boolean written;
+            try {
+                written = copyBuffer(window, buffer, transformer);
+            } catch (InternalError e) {
+                // a page of the window was removed by truncating the file while it was mapped
+                throw new IOException("File truncated while reading", e);
+            }
+            if (!written) {
+                return false;
+            }
+            position += window.capacity();
+        }
+        channel.position(position);
+        return copyBlocks(Channels.newInputStream(channel), buffer, transformer);
+    }
+
+    /**
+     * Copy the remaining contents of a buffer that is not backed by an array, such as a mapped or
+     * direct buffer, to standard output.
+     *
+     * @return false if an error occurred writing to standard output
+     */
+    private static boolean copyBuffer(ByteBuffer src, byte[] buffer, LineTransformer transformer) {
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), buffer.length);
+            src.get(buffer, 0, n);
+            if (!writeBlock(buffer, n, transformer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean writeBlock(byte[] buffer, int length, LineTransformer transformer) {
+        if (transformer != null) {
+            transformer.write(buffer, 0, length);
+        } else {
+            System.out.write(buffer, 0, length);
         }
+        return !System.out.checkError();
     }
 
     private static CommandLine parseCommandLineOptions(String[] args) {
@@ -90,6 +251,9 @@ public class Cat {
 
         options.addOption("E", "show-ends", false, "disaply $ at the end of each line");
         options.addOption("n", "number", false, "number all output lines");
+        options.addOption("z", "decompress", false, "decompress FILEs that are gzip compressed; other FILEs are copied unchanged");
+        options.addOption(null, "mmap-threshold", true, "memory map regular files of at least this many bytes (default 8388608, -1 to disable)");
+        options.addOption(null, "prefetch", true, "number of FILEs to open and read ahead of the one being written (default 4, 0 to disable)");
 
         try {
             CommandLine cmdLine = parser.parse(options, args);
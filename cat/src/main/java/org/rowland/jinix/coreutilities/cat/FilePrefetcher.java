@@ -0,0 +1,176 @@
+package org.rowland.jinix.coreutilities.cat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the FILE operands of cat ahead of the one currently being written, and reads the first
+ * block of each into a pooled direct buffer. At most depth files are open ahead at any time, so
+ * the number of pooled buffers bounds the memory used. Operands are always handed back in
+ * argument order. The standard input operand '-' is never read ahead. Files that were opened
+ * ahead but never taken, because cat stopped early, are closed by shutdown().
+ */
+class FilePrefetcher {
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private final String[] args;
+    private final int depth;
+    private final List<Future<PrefetchedFile>> futures;
+    private final BlockingQueue<ByteBuffer> bufferPool;
+    private final ExecutorService executor;
+    private int nextSubmit = 0;
+    private int outstanding = 0;
+
+    FilePrefetcher(String[] args, int depth, int bufferSize) {
+        this.args = args;
+        this.depth = depth;
+        this.futures = new ArrayList<>(Collections.nCopies(args.length, null));
+        this.bufferPool = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            bufferPool.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.executor = Executors.newFixedThreadPool(depth, r -> {
+            Thread t = new Thread(r, "cat-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        submit();
+    }
+
+    /**
+     * Get the file for the operand at index, waiting for it to be opened if necessary. The head
+     * buffer of the returned file must be given back with release().
+     */
+    PrefetchedFile take(int index) throws IOException {
+        submit();
+        try {
+            return futures.get(index).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            futures.set(index, null);
+            outstanding--;
+            submit();
+        }
+    }
+
+    void release(ByteBuffer buffer) {
+        buffer.clear();
+        bufferPool.add(buffer);
+    }
+
+    /**
+     * Stop reading ahead, and close the files that were opened ahead but not taken.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<PrefetchedFile> future = futures.get(i);
+                futures.set(i, null);
+                if (future == null || !future.isDone() || future.isCancelled()) {
+                    continue;
+                }
+                try {
+                    PrefetchedFile pf = future.get();
+                    if (pf.head != null) {
+                        release(pf.head);
+                    }
+                    if (pf.is != null) {
+                        pf.is.close();
+                    }
+                } catch (ExecutionException | InterruptedException | IOException e) {
+                    // a failed prefetch has closed its file
+                }
+            }
+        }
+    }
+
+    private void submit() {
+        while (outstanding < depth && nextSubmit < args.length) {
+            String arg = args[nextSubmit];
+            if (!arg.equals("-")) {
+                futures.set(nextSubmit, executor.submit(() -> prefetch(arg)));
+                outstanding++;
+            }
+            nextSubmit++;
+        }
+    }
+
+    private PrefetchedFile prefetch(String arg) throws IOException, InterruptedException {
+        PrefetchedFile pf = open(arg);
+        if (pf.directory) {
+            return pf;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = bufferPool.take();
+        } catch (InterruptedException e) {
+            pf.is.close(); // shut down while waiting for a buffer
+            throw e;
+        }
+        try {
+            FileChannel channel = pf.is.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    pf.eof = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            release(buffer);
+            pf.is.close();
+            throw e;
+        }
+        buffer.flip();
+        pf.head = buffer;
+        return pf;
+    }
+
+    /**
+     * Open the named file without reading ahead.
+     */
+    static PrefetchedFile open(String arg) throws IOException {
+        PrefetchedFile pf = new PrefetchedFile();
+        File f = new File(arg);
+        if (f.isDirectory()) {
+            pf.directory = true;
+            return pf;
+        }
+        pf.is = new FileInputStream(f);
+        pf.length = f.length();
+        return pf;
+    }
+
+    static class PrefetchedFile {
+        boolean directory;
+        FileInputStream is;
+        long length;
+        ByteBuffer head; // the first block of the file, or null if the file was not read ahead
+        boolean eof; // the head holds the whole file
+    }
+}
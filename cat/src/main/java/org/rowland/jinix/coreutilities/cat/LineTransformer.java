@@ -0,0 +1,140 @@
+package org.rowland.jinix.coreutilities.cat;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Applies the -n and -E line transformations to blocks of cat input. Newlines are located a word
+ * (8 bytes) at a time, and the text between them is copied as slices of the input block into an
+ * output block that is written to the output when full. Line numbers are formatted directly into
+ * the output block, so no objects are allocated per line. Line state carries over from one block,
+ * and one file, to the next.
+ */
+class LineTransformer {
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static final int NUMBER_WIDTH = 10;
+    private static final int MAX_NUMBER_LENGTH = 32;
+
+    private final PrintStream out;
+    private final boolean numberLines;
+    private final boolean showEnds;
+
+    private final byte[] outBuffer;
+    private int outCount;
+    private long lineCounter = 1;
+    private boolean atLineStart = true;
+
+    LineTransformer(PrintStream out, boolean numberLines, boolean showEnds, int bufferSize) {
+        this.out = out;
+        this.outBuffer = new byte[bufferSize];
+        this.numberLines = numberLines;
+        this.showEnds = showEnds;
+    }
+
+    void write(byte[] b, int off, int len) {
+        int end = off + len;
+        int lineStart = off;
+        while (lineStart < end) {
+            if (atLineStart && numberLines) {
+                writeLineNumber();
+            }
+            int nl = indexOfNewline(b, lineStart, end);
+            if (nl < 0) {
+                append(b, lineStart, end - lineStart);
+                atLineStart = false;
+                return;
+            }
+            if (showEnds) {
+                append(b, lineStart, nl - lineStart);
+                if (outBuffer.length - outCount < 2) {
+                    flush();
+                }
+                outBuffer[outCount++] = '$';
+                outBuffer[outCount++] = '\n';
+            } else {
+                append(b, lineStart, nl + 1 - lineStart);
+            }
+            atLineStart = true;
+            lineStart = nl + 1;
+        }
+    }
+
+    /**
+     * Write any buffered output to the output stream.
+     */
+    void flush() {
+        if (outCount > 0) {
+            out.write(outBuffer, 0, outCount);
+            outCount = 0;
+        }
+    }
+
+    private void append(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (outCount == outBuffer.length) {
+                flush();
+            }
+            int n = Math.min(len, outBuffer.length - outCount);
+            System.arraycopy(b, off, outBuffer, outCount, n);
+            outCount += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write the line number in the same form as String.format("% 10d: ") without allocating.
+     */
+    private void writeLineNumber() {
+        if (outBuffer.length - outCount < MAX_NUMBER_LENGTH) {
+            flush();
+        }
+        long n = lineCounter++;
+        int digits = 1;
+        for (long m = n / 10; m != 0; m /= 10) {
+            digits++;
+        }
+        int pad = Math.max(NUMBER_WIDTH - 1 - digits, 0);
+        for (int i = 0; i <= pad; i++) {
+            outBuffer[outCount++] = ' ';
+        }
+        int pos = outCount + digits;
+        do {
+            outBuffer[--pos] = (byte) ('0' + (n % 10));
+            n /= 10;
+        } while (n != 0);
+        outCount += digits;
+        outBuffer[outCount++] = ':';
+        outBuffer[outCount++] = ' ';
+    }
+
+    /**
+     * Find the first newline in b[from, to), testing 8 bytes at a time with the SWAR zero byte
+     * test. The lowest flagged byte of a word is always exact, so no verification is required.
+     */
+    static int indexOfNewline(byte[] b, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = (long) LONG_VIEW.get(b, i) ^ NEWLINES;
+            long t = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (t != 0) {
+                return i + (Long.numberOfTrailingZeros(t) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (b[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
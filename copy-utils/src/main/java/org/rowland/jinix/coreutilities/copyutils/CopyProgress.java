@@ -0,0 +1,166 @@
+package org.rowland.jinix.coreutilities.copyutils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes and files copied by cp or mv. The counters are LongAdders, so the copy loops of
+ * several threads can update them for every block without contending. A reporter thread, started
+ * by --progress, samples them once a second and rewrites a single status line with the amount
+ * copied, files per second, MB/s and, when the total to copy is known, the time left.
+ */
+public class CopyProgress {
+
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private long expectedBytes;
+    private final String verb;
+    private long start; // when the reporter was started
+    private Thread reporter;
+    private PrintStream out;
+
+    /**
+     * @param verb what is done to the files, such as "copied", for the status line
+     */
+    public CopyProgress(String verb) {
+        this.verb = verb;
+    }
+
+    /**
+     * Add the sizes of the regular files at path, and below it if recursive is true, to the total
+     * expected to be copied.
+     */
+    public void expect(Path path, boolean recursive) throws IOException {
+        expectedBytes += sizeOf(path, recursive);
+    }
+
+    /**
+     * Return the total size of the regular files at path, and below it if recursive is true.
+     * Files that can not be read are not counted.
+     */
+    public static long sizeOf(Path path, boolean recursive) throws IOException {
+        long[] size = new long[1];
+        Files.walkFileTree(path, Collections.emptySet(), (recursive ? Integer.MAX_VALUE : 0),
+                new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    size[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    /**
+     * Count bytes copied. Called from the copy loops for every block.
+     */
+    public void copied(long n) {
+        bytes.add(n);
+    }
+
+    /**
+     * Count a file copied or moved.
+     */
+    public void fileDone() {
+        files.increment();
+    }
+
+    /**
+     * Start a thread that reports progress to out until stopReporter() is called. The total
+     * expected must be set before this is called.
+     */
+    public void startReporter(PrintStream out) {
+        this.out = out;
+        start = System.nanoTime();
+        reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(REPORT_INTERVAL_MILLIS);
+                    out.print("\r" + status(false));
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }, "progress");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Stop the reporter thread, if one was started, and print the final totals.
+     */
+    public void stopReporter() {
+        if (reporter == null) {
+            return;
+        }
+        reporter.interrupt();
+        try {
+            reporter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reporter = null;
+        out.println("\r" + status(true));
+    }
+
+    private String status(boolean done) {
+        long copied = bytes.sum();
+        long fileCount = files.sum();
+        double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+        double bytesPerSecond = copied / seconds;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(formatBytes(copied));
+        if (expectedBytes > 0) {
+            sb.append(" of ").append(formatBytes(expectedBytes))
+                    .append(" (").append(Math.min(100, copied * 100 / expectedBytes)).append("%)");
+        }
+        sb.append(' ').append(verb).append(", ").append(fileCount).append(fileCount == 1 ? " file, " : " files, ")
+                .append(String.format("%.1f files/s, %.1f MB/s", fileCount / seconds, bytesPerSecond / (1024 * 1024)));
+        if (done) {
+            sb.append(", ").append(formatTime((long) seconds));
+        } else if (expectedBytes > 0 && bytesPerSecond > 0) {
+            sb.append(", ETA ").append(formatTime((long) (Math.max(0, expectedBytes - copied) / bytesPerSecond)));
+        }
+        sb.append("   "); // cover the end of a longer previous line
+        return sb.toString();
+    }
+
+    private static String formatBytes(long n) {
+        if (n < 1024) {
+            return n + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB", "PB"};
+        double value = n / 1024.0;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    private static String formatTime(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,291 @@
+package org.rowland.jinix.coreutilities.copyutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copies the contents of a file through channels, for file systems whose provider does not
+ * implement Files.copy(), such as the Jinix file system. When both files are opened as
+ * FileChannels, the data is moved with transferTo() in large chunks, which the provider may
+ * implement without copying through the Java heap. Otherwise, or for whatever the transfer
+ * leaves, the file is copied through a large pooled direct buffer, so a file of n bytes takes
+ * about n / BUFFER_SIZE reads and writes. The transfer methods are not used between other
+ * channels, because they then copy through a small heap buffer, which is slower than the pool.
+ * Every method reports the bytes it copies to a CopyProgress as it goes.
+ *
+ * A copy through the buffer may be sparse: each SPARSE_BLOCK_SIZE block of zeros is skipped by
+ * moving the position of the destination instead of being written, so the destination has a
+ * hole there on file systems that support holes, and zeros on any other.
+ */
+public class FileCopier {
+
+    private static final long TRANSFER_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int SPARSE_BLOCK_SIZE = 4096;
+
+    /**
+     * When to make holes in the destination for blocks of zeros.
+     */
+    public enum Sparse {
+        /** Never: every byte is written. */
+        NEVER,
+        /** For the data copied through the buffer, whose bytes are looked at anyway. */
+        AUTO,
+        /** Always: the transfer methods are not used, so every block can be looked at. */
+        ALWAYS
+    }
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Copy the contents of src to dest, which is opened with the given options. The options must
+     * truncate or create dest if sparse is not NEVER.
+     */
+    public static void copy(Path src, Path dest, Sparse sparse, CopyProgress progress, OpenOption... destOptions)
+            throws IOException {
+        try (SeekableByteChannel in = open(src, StandardOpenOption.READ);
+             SeekableByteChannel out = open(dest, destOptions)) {
+            copy(in, out, sparse, progress);
+        }
+    }
+
+    /**
+     * Copy from the current position of in to the end of in, writing at the current position of
+     * out. Unless sparse is NEVER, out must have no data after its position, because holes are
+     * made by skipping over it.
+     */
+    public static void copy(SeekableByteChannel in, SeekableByteChannel out, Sparse sparse, CopyProgress progress)
+            throws IOException {
+        if (in instanceof FileChannel && out instanceof FileChannel && sparse != Sparse.ALWAYS) {
+            long start = in.position();
+            in.position(start + transferTo((FileChannel) in, start, in.size() - start, (FileChannel) out, progress));
+        }
+        if (sparse == Sparse.NEVER) {
+            copyBuffered(in, out, progress);
+        } else {
+            copySparse(in, out, progress);
+        }
+    }
+
+    private static long transferTo(FileChannel in, long position, long count, FileChannel out,
+                                   CopyProgress progress) throws IOException {
+        long copied = 0;
+        try {
+            while (copied < count) {
+                long n = in.transferTo(position + copied, Math.min(TRANSFER_CHUNK_SIZE, count - copied), out);
+                if (n <= 0) {
+                    break; // the rest is copied through a buffer
+                }
+                copied += n;
+                progress.copied(n);
+            }
+        } catch (UnsupportedOperationException e) {
+            // the rest is copied through a buffer
+        }
+        return copied;
+    }
+
+    /**
+     * Copy whatever remains of in through a pooled direct buffer.
+     */
+    private static void copyBuffered(SeekableByteChannel in, SeekableByteChannel out, CopyProgress progress)
+            throws IOException {
+        ByteBuffer buffer = takeBuffer();
+        try {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                progress.copied(buffer.limit());
+                buffer.clear();
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Copy whatever remains of in through a pooled direct buffer, skipping blocks of zeros. If the
+     * file ends with a hole, its last byte is written so that out has the length of in.
+     */
+    private static void copySparse(SeekableByteChannel in, SeekableByteChannel out, CopyProgress progress)
+            throws IOException {
+        ByteBuffer buffer = takeBuffer();
+        try {
+            boolean endsWithHole = false;
+            int n;
+            while ((n = readBlock(in, buffer, BUFFER_SIZE)) > 0) {
+                int dataStart = 0; // the start of the data not yet written
+                for (int block = 0; block < n; block += SPARSE_BLOCK_SIZE) {
+                    int blockEnd = Math.min(block + SPARSE_BLOCK_SIZE, n);
+                    if (isZero(buffer, block, blockEnd)) {
+                        write(out, buffer, dataStart, block);
+                        out.position(out.position() + (blockEnd - block));
+                        dataStart = blockEnd;
+                    }
+                }
+                write(out, buffer, dataStart, n);
+                endsWithHole = (dataStart == n);
+                progress.copied(n);
+            }
+            if (endsWithHole) {
+                out.position(out.position() - 1);
+                buffer.clear().limit(1);
+                buffer.put(0, (byte) 0);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(SeekableByteChannel out, ByteBuffer buffer, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        int limit = buffer.limit();
+        buffer.limit(to).position(from);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.limit(limit);
+    }
+
+    /**
+     * Make dest a copy of src by rewriting only the blocks of dest that differ from src, and then
+     * cutting dest to the length of src. Both files are read once, but a file that is mostly
+     * unchanged is mostly not written. The modification time of src is then set on dest, even if
+     * no block differed, so that a later cp -u finds dest up to date without reading it again.
+     *
+     * @return the number of bytes written to dest
+     */
+    public static long update(Path src, Path dest, CopyProgress progress) throws IOException {
+        long written = updateBlocks(src, dest, progress);
+        Files.setLastModifiedTime(dest, Files.getLastModifiedTime(src));
+        return written;
+    }
+
+    private static long updateBlocks(Path src, Path dest, CopyProgress progress) throws IOException {
+        try (SeekableByteChannel in = open(src, StandardOpenOption.READ);
+             SeekableByteChannel out = open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer srcBlock = takeBuffer();
+            ByteBuffer destBlock = takeBuffer();
+            try {
+                long position = 0;
+                long written = 0;
+                int n;
+                while ((n = readBlock(in, srcBlock, BUFFER_SIZE)) > 0) {
+                    readBlock(out, destBlock, n);
+                    if (srcBlock.mismatch(destBlock) >= 0) {
+                        out.position(position);
+                        while (srcBlock.hasRemaining()) {
+                            out.write(srcBlock);
+                        }
+                        written += n;
+                    }
+                    position += n;
+                    out.position(position);
+                    progress.copied(n);
+                }
+                if (out.size() > position) {
+                    out.truncate(position);
+                }
+                return written;
+            } finally {
+                releaseBuffer(srcBlock);
+                releaseBuffer(destBlock);
+            }
+        }
+    }
+
+    /**
+     * Return true if the two files have the same contents, such as to verify a copy before its
+     * source is deleted.
+     */
+    public static boolean sameContents(Path a, Path b) throws IOException {
+        try (SeekableByteChannel inA = open(a, StandardOpenOption.READ);
+             SeekableByteChannel inB = open(b, StandardOpenOption.READ)) {
+            if (inA.size() != inB.size()) {
+                return false;
+            }
+            ByteBuffer blockA = takeBuffer();
+            ByteBuffer blockB = takeBuffer();
+            try {
+                int n;
+                while ((n = readBlock(inA, blockA, BUFFER_SIZE)) > 0) {
+                    if (readBlock(inB, blockB, n) != n || blockA.mismatch(blockB) >= 0) {
+                        return false;
+                    }
+                }
+                return readBlock(inB, blockB, 1) == 0;
+            } finally {
+                releaseBuffer(blockA);
+                releaseBuffer(blockB);
+            }
+        }
+    }
+
+    /**
+     * Read up to size bytes into the buffer, stopping early only at the end of the channel, and
+     * leave the buffer flipped.
+     *
+     * @return the number of bytes read
+     */
+    private static int readBlock(SeekableByteChannel in, ByteBuffer block, int size) throws IOException {
+        block.clear().limit(size);
+        while (block.hasRemaining() && in.read(block) >= 0) {
+            // keep reading until the block is full
+        }
+        block.flip();
+        return block.limit();
+    }
+
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return (buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        bufferPool.add(buffer);
+    }
+
+    /**
+     * Open a file as a FileChannel if its provider supports that, and otherwise as a byte
+     * channel.
+     */
+    public static SeekableByteChannel open(Path path, OpenOption... options) throws IOException {
+        try {
+            return FileChannel.open(path, options);
+        } catch (UnsupportedOperationException e) {
+            return Files.newByteChannel(path, new HashSet<>(Arrays.asList(options)));
+        }
+    }
+}
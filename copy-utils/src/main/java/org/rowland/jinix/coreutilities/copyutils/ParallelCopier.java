@@ -0,0 +1,71 @@
+package org.rowland.jinix.coreutilities.copyutils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the file copies of a recursive cp, or of a mv between file systems, on a work-stealing
+ * pool of jobs threads, so that the per-file latency of opening, creating and closing files
+ * overlaps. The number of copies that may be queued but not yet finished is bounded, so a walk
+ * of a large tree blocks rather than queueing a task for every file in it.
+ */
+public class ParallelCopier {
+
+    private static final int QUEUED_PER_JOB = 4;
+
+    private final ForkJoinPool pool;
+    private final int maxQueued;
+    private final Semaphore permits;
+
+    public ParallelCopier(int jobs) {
+        this.pool = new ForkJoinPool(jobs);
+        this.maxQueued = jobs * QUEUED_PER_JOB;
+        this.permits = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Queue a copy, waiting while the queue is full. The copy must report its own errors.
+     */
+    public void submit(Runnable copy) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        pool.execute(() -> {
+            try {
+                copy.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Wait until every copy queued so far has finished. More copies may be queued afterwards.
+     */
+    public void await() throws InterruptedIOException {
+        try {
+            permits.acquire(maxQueued);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        permits.release(maxQueued);
+    }
+
+    /**
+     * Wait for every queued copy to finish, and stop the threads.
+     */
+    public void finish() {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                // a large file may take longer than one wait
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+        }
+    }
+}
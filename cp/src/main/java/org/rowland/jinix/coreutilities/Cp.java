@@ -1,11 +1,17 @@
 package org.rowland.jinix.coreutilities;
 
 import org.apache.commons.cli.*;
+import org.rowland.jinix.coreutilities.copyutils.CopyProgress;
+import org.rowland.jinix.coreutilities.copyutils.FileCopier;
+import org.rowland.jinix.coreutilities.copyutils.ParallelCopier;
 import org.rowland.jinix.coreutilities.globutils.InvalidGlobException;
 import org.rowland.jinix.coreutilities.globutils.ParseGlobResult;
 
 import java.io.*;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
 import java.util.function.Consumer;
 
 import static org.rowland.jinix.coreutilities.globutils.GlobUtils.isGlob;
@@ -15,12 +21,40 @@ import static org.rowland.jinix.coreutilities.globutils.GlobUtils.parseGlob;
  * Created by rsmith on 3/18/2017.
  */
 public class Cp {
+
+    private static ParallelCopier copier; // copies the files of recursive copies, or null without -r
+    private static final CopyProgress progress = new CopyProgress("copied");
+    private static boolean reportProgress;
+    private static FileCopier.Sparse sparse = FileCopier.Sparse.AUTO;
+
     public static void main(String[] args) {
         CommandLine cmdLine = parseCommandLineOptions(args);
         if (cmdLine == null) return;
 
         args = cmdLine.getArgs();
 
+        int jobs = Runtime.getRuntime().availableProcessors();
+        if (cmdLine.hasOption("jobs")) {
+            try {
+                jobs = Integer.parseInt(cmdLine.getOptionValue("jobs"));
+                if (jobs < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("cp: invalid number of jobs: "+cmdLine.getOptionValue("jobs"));
+                return;
+            }
+        }
+
+        if (cmdLine.hasOption("sparse")) {
+            try {
+                sparse = FileCopier.Sparse.valueOf(cmdLine.getOptionValue("sparse").toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("cp: invalid argument '"+cmdLine.getOptionValue("sparse")+"' for '--sparse'");
+                return;
+            }
+        }
+
         if (args.length < 1) {
             System.err.println("cp: missing file operand");
             System.err.println("Try 'cp --help' for more information");
@@ -32,8 +66,20 @@ public class Cp {
             return;
         }
 
+        if (cmdLine.hasOption('r') || cmdLine.hasOption('R')) {
+            copier = new ParallelCopier(jobs);
+        }
+
         Path dest = null;
         try {
+            if (cmdLine.hasOption("progress")) {
+                for (int i=0; i<(args.length-1); i++) {
+                    expectSource(Paths.get(args[i]), copier != null);
+                }
+                reportProgress = true;
+                progress.startReporter(System.err);
+            }
+
             if (args.length == 2) {
                 Path src = Paths.get(args[0]);
                 dest = Paths.get(args[1]);
@@ -56,6 +102,32 @@ public class Cp {
             System.err.println("cp: target '"+dest.toString()+"': is not a directory");
         } catch (IOException e) {
             throw new RuntimeException("IOException copying file",e);
+        } finally {
+            if (copier != null) {
+                copier.finish();
+            }
+            progress.stopReporter();
+        }
+    }
+
+    /**
+     * Add the size of a source operand, which may be a glob, to the total that --progress
+     * expects to copy.
+     */
+    private static void expectSource(Path src, boolean recursive) throws IOException {
+        if (isGlob(src.toString())) {
+            try {
+                ParseGlobResult pgr = parseGlob(src);
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(pgr.dir, pgr.fileName)) {
+                    for (Path path : ds) {
+                        progress.expect(pgr.dir.resolve(path), recursive);
+                    }
+                }
+            } catch (InvalidGlobException e) {
+                // reported when the files are copied
+            }
+        } else if (Files.exists(src)) {
+            progress.expect(src, recursive);
         }
     }
 
@@ -89,74 +161,193 @@ public class Cp {
 
     private static void copyFileInner(Path src, Path dest, CommandLine cmdLine) throws IOException {
         try {
-            if (Files.isDirectory(dest)) {
-                if (cmdLine.hasOption('n')) {
-                    try {
-                        Files.copy(src, dest.resolve(src.getFileName()));
-                    } catch (FileAlreadyExistsException e) {
-                        System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
-                    } catch (UnsupportedOperationException e) {
-                        copyFile(src, dest.resolve(src.getFileName()), false);
+            Path target = (Files.isDirectory(dest) ? dest.resolve(src.getFileName()) : dest);
+            if (Files.isDirectory(src)) {
+                if (copier == null) {
+                    System.err.println("cp: -r not specified; omitting directory '" + src.toString() + "'");
+                    return;
+                }
+                copyTree(src, target, cmdLine);
+                return;
+            }
+            copyRegularFile(src, target, cmdLine);
+        } catch (NoSuchFileException e) {
+            System.err.println("cp: cannot copy '" + src.toString() + "': No such file or directory");
+        }
+    }
+
+    /**
+     * Copy the directory src to target. Directories are created by the walk, in order, so each
+     * exists before anything is copied into it. Files are handed to the ParallelCopier.
+     */
+    private static void copyTree(Path src, Path target, CommandLine cmdLine) throws IOException {
+        if (target.toAbsolutePath().normalize().startsWith(src.toAbsolutePath().normalize())) {
+            System.err.println("cp: cannot copy a directory, '" + src.toString() + "', into itself, '" +
+                    target.toString() + "'");
+            return;
+        }
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Path targetDir = resolve(dir);
+                try {
+                    Files.createDirectory(targetDir);
+                    if (cmdLine.hasOption('v')) {
+                        System.out.println("'" + dir.toString() + "' -> '" + targetDir.toString() + "'");
                     }
-                } else {
-                    try {
-                        Files.copy(src, dest.resolve(src.getFileName()), StandardCopyOption.REPLACE_EXISTING);
-                    } catch (UnsupportedOperationException e) {
-                        copyFile(src, dest.resolve(src.getFileName()), true);
+                } catch (FileAlreadyExistsException e) {
+                    if (!Files.isDirectory(targetDir)) {
+                        System.err.println("cp: cannot overwrite non-directory '" + targetDir.toString() +
+                                "' with directory '" + dir.toString() + "'");
+                        return FileVisitResult.SKIP_SUBTREE;
                     }
+                } catch (IOException e) {
+                    System.err.println("cp: cannot create directory '" + targetDir.toString() + "': " + e.getMessage());
+                    return FileVisitResult.SKIP_SUBTREE;
                 }
-            } else {
-                if (cmdLine.hasOption('n')) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path targetFile = resolve(file);
+                copier.submit(() -> {
                     try {
-                        Files.copy(src, dest);
-                    } catch (FileAlreadyExistsException e) {
-                        System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
-                    } catch (UnsupportedOperationException e) {
-                        copyFile(src, dest, false);
+                        if (attrs.isSymbolicLink()) {
+                            copySymbolicLink(file, targetFile, cmdLine);
+                            return;
+                        }
+                        copyRegularFile(file, targetFile, cmdLine);
+                    } catch (IOException e) {
+                        System.err.println("cp: cannot copy '" + file.toString() + "': " + e.getMessage());
                     }
-                } else {
-                    try {
-                        Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
-                    } catch (UnsupportedOperationException e) {
-                        copyFile(src, dest, true);
+                });
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("cp: cannot access '" + file.toString() + "': " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path resolve(Path path) {
+                Path relative = src.relativize(path);
+                return (relative.toString().isEmpty() ? target : target.resolve(relative.toString()));
+            }
+        });
+    }
+
+    /**
+     * Copy a link found by a recursive copy as a link, or copy what it links to if the file
+     * system can not copy links.
+     */
+    private static void copySymbolicLink(Path src, Path dest, CommandLine cmdLine) throws IOException {
+        try {
+            if (cmdLine.hasOption('n')) {
+                Files.copy(src, dest, LinkOption.NOFOLLOW_LINKS);
+            } else {
+                Files.copy(src, dest, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+            }
+            copied(src, dest, cmdLine);
+        } catch (FileAlreadyExistsException e) {
+            System.err.println("cp: cannot copy '" + src.toString() + "': File already exists");
+        } catch (UnsupportedOperationException e) {
+            copyRegularFile(src, dest, cmdLine);
+        }
+    }
+
+    /**
+     * Copy one file. With -u, a destination file of the same size that is not older than the source
+     * is left alone. With --checksum, an existing destination file is compared with the source a
+     * block at a time, and only the blocks that differ are rewritten.
+     */
+    private static void copyRegularFile(Path src, Path dest, CommandLine cmdLine) throws IOException {
+        boolean update = cmdLine.hasOption('u');
+        boolean checksum = cmdLine.hasOption("checksum");
+        if ((update || checksum) && !cmdLine.hasOption('n')) {
+            BasicFileAttributes destAttr = readAttributes(dest);
+            if (destAttr != null && destAttr.isRegularFile()) {
+                if (update) {
+                    BasicFileAttributes srcAttr = Files.getFileAttributeView(src, BasicFileAttributeView.class).readAttributes();
+                    if (srcAttr.size() == destAttr.size() &&
+                            destAttr.lastModifiedTime().compareTo(srcAttr.lastModifiedTime()) >= 0) {
+                        return;
                     }
                 }
+                if (checksum) {
+                    FileCopier.update(src, dest, progress);
+                    copied(src, dest, cmdLine);
+                    return;
+                }
+            }
+        }
+        if (reportProgress || sparse == FileCopier.Sparse.ALWAYS) {
+            // copied through FileCopier, whose loops count every block and make holes, and not by Files.copy()
+            if (copyFile(src, dest, !cmdLine.hasOption('n'))) {
+                copied(src, dest, cmdLine);
             }
+        } else if (cmdLine.hasOption('n')) {
+            try {
+                Files.copy(src, dest);
+                copied(src, dest, cmdLine);
+            } catch (FileAlreadyExistsException e) {
+                System.err.println("cp: cannot copy '" + src.toString() + "': File already exists");
+            } catch (UnsupportedOperationException e) {
+                if (copyFile(src, dest, false)) {
+                    copied(src, dest, cmdLine);
+                }
+            }
+        } else {
+            try {
+                Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING);
+            } catch (UnsupportedOperationException e) {
+                copyFile(src, dest, true);
+            }
+            copied(src, dest, cmdLine);
+        }
+    }
+
+    private static void copied(Path src, Path dest, CommandLine cmdLine) {
+        progress.fileDone();
+        if (cmdLine.hasOption('v')) {
+            System.out.println("'" + src.toString() + "' -> '" + dest.toString() + "'");
+        }
+    }
+
+    /**
+     * Return the attributes of a file, or null if it does not exist.
+     */
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.getFileAttributeView(path, BasicFileAttributeView.class).readAttributes();
         } catch (NoSuchFileException e) {
-            System.err.println("cp: cannot copy '" + src.toString() + "': No such file or directory");
+            return null;
         }
     }
 
-    private static void copyFile(Path src, Path dest, boolean replace) throws IOException {
-        InputStream srcInputStream = new BufferedInputStream(Files.newInputStream(src, StandardOpenOption.READ));
-        OutputStream destOutputStream;
+    /**
+     * Copy the contents of src to dest through FileCopier.
+     *
+     * @return false if dest exists and replace is false, so nothing was copied
+     */
+    private static boolean copyFile(Path src, Path dest, boolean replace) throws IOException {
         if (replace) {
-            destOutputStream = new BufferedOutputStream(Files.newOutputStream(dest,
+            FileCopier.copy(src, dest, sparse, progress,
                     StandardOpenOption.WRITE,
                     StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING));
+                    StandardOpenOption.TRUNCATE_EXISTING);
         } else {
             try {
-                destOutputStream = new BufferedOutputStream(Files.newOutputStream(dest,
+                FileCopier.copy(src, dest, sparse, progress,
                         StandardOpenOption.WRITE,
-                        StandardOpenOption.CREATE_NEW));
+                        StandardOpenOption.CREATE_NEW);
             } catch (FileAlreadyExistsException e) {
                 System.err.println("cp: cannot copy '" + src.toString() + "': File already exists");
-                return;
+                return false;
             }
         }
-
-        try {
-            byte[] b = new byte[1024];
-            int br = srcInputStream.read(b);
-            while (br > 0) {
-                destOutputStream.write(b, 0, br);
-                br = srcInputStream.read(b);
-            }
-        } finally {
-            srcInputStream.close();
-            destOutputStream.close();
-        }
+        return true;
     }
 
     private static CommandLine parseCommandLineOptions(String[] args) {
@@ -167,8 +358,17 @@ public class Cp {
 
         options.addOption("f", "force", false, "do not prompt before overwriting");
         options.addOption("n", "no-clobber", false, "do not overwrite an existing file");
+        options.addOption("u", "update", false, "copy only when the source file differs in size from the destination file, or is newer");
+        options.addOption(null, "checksum", false, "compare existing destination files block by block, and rewrite only the blocks that differ");
+        options.addOption("R", "recursive", false, "copy directories recursively");
+        options.addOption("r", false, "same as -R");
+        options.addOption(null, "jobs", true, "copy up to this many files of a recursive copy at once (default: the number of processors)");
         options.addOption("t", "target-directory", true, "move all SOURCE arguments into directory");
         options.addOption("v", "verbose", false, "explain what is being done");
+        options.addOption(Option.builder().longOpt("sparse").hasArg().argName("WHEN")
+                .desc("make holes in destination files for blocks of zeros: never, auto (when a file is copied through a buffer) or always")
+                .build());
+        options.addOption(null, "progress", false, "report the amount copied, files/s, MB/s and the time left while copying");
 
         try {
             CommandLine cmdLine = parser.parse(options, args);
@@ -2,7 +2,10 @@ package org.rowland.jinix.coreutilities.globutils;
 
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Created by rsmith on 2/15/2017.
@@ -43,4 +46,65 @@ public class GlobUtils {
         }
         return false;
     }
+
+    /**
+     * Return a matcher that tests the file name (the last element) of a path against a glob. The
+     * glob may contain * to match any sequence of characters, ? to match any single character
+     * and [...] to match one of a set of characters. Matching does not depend on the file
+     * system provider, so it can be used on paths from any file system.
+     */
+    public static PathMatcher fileNameMatcher(String glob) throws InvalidGlobException {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(globToRegex(glob));
+        } catch (PatternSyntaxException e) {
+            // a set that is empty, as [], or has a range out of order, as [z-a]
+            throw new InvalidGlobException("Invalid glob in argument: " + glob);
+        }
+        return path -> {
+            Path fileName = path.getFileName();
+            return fileName != null && pattern.matcher(fileName.toString()).matches();
+        };
+    }
+
+    private static String globToRegex(String glob) throws InvalidGlobException {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    regex.append(c);
+                } else if (c == '\\' || c == '[' || c == '&') {
+                    regex.append('\\').append(c);
+                } else {
+                    regex.append(c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[':
+                    inClass = true;
+                    regex.append('[');
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        regex.append('^');
+                        i++;
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inClass) {
+            throw new InvalidGlobException("Invalid glob in argument");
+        }
+        return regex.toString();
+    }
 }
@@ -0,0 +1,115 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the grep engines on a corpus of patterns. Each operation matches every line of an
+ * 8 MB generated corpus, so MB/s is 8 times the operations per second. AUTO shows the engine
+ * that grep picks for the pattern.
+ *
+ * Build and run with:
+ * <pre>
+ *   mvn -P bench -pl grep-bench -am package
+ *   java -jar grep-bench/target/benchmarks.jar EngineBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    static final int CORPUS_SIZE = 8 * 1024 * 1024;
+
+    private static final String[] WORDS = {
+            "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "cat", "foo", "bar",
+            "xx", "lorem", "ipsum", "dolor", "sit", "amet", "and", "of", "to", "in", "is"
+    };
+
+    @Param({"(fox|dog|cat)s?", "(quick|lazy) [a-z]+ dog", "o\\s+\\S+\\d$", "x{2,}", "[0-9]+\\.[0-9]+",
+            "^the.*5$", "foo.*bar", "a.*o.*i.*z"})
+    public String pattern;
+
+    @Param({"AUTO", "DFA", "REGEX"})
+    public String engine;
+
+    private byte[] corpus;
+    private int[] lineStarts; // the start of each line, and the end of the corpus
+    private LineMatcher matcher;
+
+    @Setup
+    public void setup() {
+        corpus = generateCorpus(new Random(42));
+        int lines = 0;
+        for (byte b : corpus) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        lineStarts = new int[lines + 1];
+        int line = 1;
+        for (int i = 0; i < corpus.length; i++) {
+            if (corpus[i] == '\n') {
+                lineStarts[line++] = i + 1;
+            }
+        }
+        matcher = GrepPattern.compile(pattern, StandardCharsets.UTF_8, GrepPattern.Engine.valueOf(engine)).matcher();
+    }
+
+    /**
+     * @return the number of matching lines, so the work is not optimized away
+     */
+    @Benchmark
+    public int matchCorpus() {
+        int matches = 0;
+        for (int i = 0; i + 1 < lineStarts.length; i++) {
+            if (matcher.find(corpus, lineStarts[i], lineStarts[i + 1] - 1)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Generate lines of words and numbers, about 60 bytes long, ending with newlines.
+     */
+    static byte[] generateCorpus(Random random) {
+        StringBuilder sb = new StringBuilder(CORPUS_SIZE + 128);
+        while (sb.length() < CORPUS_SIZE) {
+            int words = 4 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                switch (random.nextInt(8)) {
+                    case 0:
+                        sb.append(random.nextInt(1000));
+                        break;
+                    case 1:
+                        sb.append(random.nextInt(100)).append('.').append(random.nextInt(100));
+                        break;
+                    default:
+                        sb.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that finds whether any of a set of fixed byte strings occurs in a line.
+ * The trie and its failure links are compiled into a complete transition table, so scanning a
+ * line costs one table lookup per byte however many strings are in the set. Bytes that occur in
+ * none of the strings share a single column of the table, which keeps the table small for the
+ * text-like signatures grep is usually given.
+ */
+class AhoCorasick {
+
+    private final int[] byteClass = new int[256];
+    private final int classCount;
+    private int[] delta; // delta[state * classCount + class] is the next state
+    private boolean[] accepting; // a string in the set ends at this state, or at one of its suffixes
+    private int stateCount;
+
+    AhoCorasick(List<byte[]> literals) {
+        int classes = 1; // class 0 holds every byte that occurs in no literal
+        for (byte[] literal : literals) {
+            for (byte b : literal) {
+                if (byteClass[b & 0xff] == 0) {
+                    byteClass[b & 0xff] = classes++;
+                }
+            }
+        }
+        classCount = classes;
+
+        delta = new int[classCount * 64];
+        Arrays.fill(delta, -1);
+        accepting = new boolean[64];
+        stateCount = 1;
+        for (byte[] literal : literals) {
+            int state = 0;
+            for (byte b : literal) {
+                int i = state * classCount + byteClass[b & 0xff];
+                if (delta[i] < 0) {
+                    int next = newState(); // may replace delta
+                    delta[i] = next;
+                }
+                state = delta[i];
+            }
+            accepting[state] = true;
+        }
+        buildFailureTransitions();
+    }
+
+    /**
+     * Return true if any of the strings occurs in b[from, to).
+     */
+    boolean find(byte[] b, int from, int to) {
+        if (accepting[0]) {
+            return true;
+        }
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            state = delta[state * classCount + byteClass[b[i] & 0xff]];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int newState() {
+        if (stateCount * classCount == delta.length) {
+            int oldLength = delta.length;
+            delta = Arrays.copyOf(delta, oldLength * 2);
+            Arrays.fill(delta, oldLength, delta.length, -1);
+            accepting = Arrays.copyOf(accepting, accepting.length * 2);
+        }
+        return stateCount++;
+    }
+
+    /**
+     * Replace the missing trie transitions of each state with the transition of its failure
+     * state, visiting states in breadth first order so that the failure state of every state has
+     * already been completed.
+     */
+    private void buildFailureTransitions() {
+        int[] fail = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0, tail = 0;
+        for (int c = 0; c < classCount; c++) {
+            int next = delta[c];
+            if (next < 0) {
+                delta[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            accepting[state] |= accepting[fail[state]];
+            int row = state * classCount;
+            int failRow = fail[state] * classCount;
+            for (int c = 0; c < classCount; c++) {
+                int next = delta[row + c];
+                if (next < 0) {
+                    delta[row + c] = delta[failRow + c];
+                } else {
+                    fail[next] = delta[failRow + c];
+                    queue[tail++] = next;
+                }
+            }
+        }
+        delta = Arrays.copyOf(delta, stateCount * classCount);
+    }
+}
@@ -0,0 +1,196 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.nio.charset.Charset;
+
+/**
+ * Matches patterns that are a fixed length sequence of literal characters and ASCII character
+ * classes, such as "x=1[0-9]" or "\d\d:\d\d", directly against encoded bytes. Each position of
+ * the sequence is a table of the bytes it accepts. Only patterns whose every position matches
+ * exactly one byte, in an ASCII compatible encoding, are accepted by compile(); anything else
+ * is left to the regular expression engine.
+ */
+class ByteClassPattern {
+
+    private static final String META_CHARACTERS = "^$.|?*+()[]{}";
+
+    private final boolean[] accepts; // accepts[k * 256 + b] is true if position k accepts byte b
+    private final int length;
+    private final boolean anchorStart;
+    private final boolean anchorEnd;
+
+    private ByteClassPattern(boolean[] accepts, int length, boolean anchorStart, boolean anchorEnd) {
+        this.accepts = accepts;
+        this.length = length;
+        this.anchorStart = anchorStart;
+        this.anchorEnd = anchorEnd;
+    }
+
+    /**
+     * Compile the pattern, or return null if it is not a fixed length sequence of characters and
+     * ASCII classes.
+     */
+    static ByteClassPattern compile(String pattern, Charset charset) {
+        boolean anchorStart = pattern.startsWith("^");
+        int start = (anchorStart ? 1 : 0);
+        int end = pattern.length();
+        boolean anchorEnd = false;
+        if (end > start && pattern.charAt(end - 1) == '$' && !isEscaped(pattern, end - 1)) {
+            anchorEnd = true;
+            end--;
+        }
+
+        boolean[] accepts = new boolean[256 * (end - start) * 4];
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            char c = pattern.charAt(i);
+            int k = length * 256;
+            if (c == '\\') {
+                if (i + 1 >= end || !addEscape(pattern.charAt(i + 1), accepts, k)) {
+                    return null;
+                }
+                length++;
+                i += 2;
+            } else if (c == '[') {
+                i = addClass(pattern, i + 1, end, accepts, k);
+                if (i < 0) {
+                    return null;
+                }
+                length++;
+            } else if (META_CHARACTERS.indexOf(c) >= 0 || Character.isSurrogate(c)) {
+                return null;
+            } else if (c < 0x80) {
+                accepts[k + c] = true;
+                length++;
+                i++;
+            } else {
+                for (byte b : String.valueOf(c).getBytes(charset)) {
+                    accepts[length++ * 256 + (b & 0xff)] = true;
+                }
+                i++;
+            }
+        }
+        boolean[] trimmed = new boolean[length * 256];
+        System.arraycopy(accepts, 0, trimmed, 0, trimmed.length);
+        return new ByteClassPattern(trimmed, length, anchorStart, anchorEnd);
+    }
+
+    /**
+     * Return true if the pattern matches anywhere in b[from, to).
+     */
+    boolean find(byte[] b, int from, int to) {
+        int last = to - length;
+        int first = (anchorEnd ? last : from);
+        if (anchorStart) {
+            last = Math.min(last, from);
+        }
+        for (int i = Math.max(first, from); i <= last; i++) {
+            int k = 0;
+            while (k < length && accepts[k * 256 + (b[i + k] & 0xff)]) {
+                k++;
+            }
+            if (k == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the pattern ends with $ and the line ends with a character that $ may
+     * match before, as java.util.regex does. Such lines are left to the regular expression
+     * engine.
+     */
+    boolean endsWithLineTerminator(byte[] b, int start, int end) {
+        if (!anchorEnd || end == start) {
+            return false;
+        }
+        int last = b[end - 1] & 0xff;
+        return last == '\r' || last == 0x85 || last == 0xa8 || last == 0xa9;
+    }
+
+    /**
+     * Parse the class whose contents start at index i, adding its members at table offset k.
+     *
+     * @return the index after the closing ], or -1 if the class is not a simple ASCII class
+     */
+    private static int addClass(String pattern, int i, int end, boolean[] accepts, int k) {
+        if (i >= end || pattern.charAt(i) == '^' || pattern.charAt(i) == ']') {
+            return -1;
+        }
+        while (i < end) {
+            char c = pattern.charAt(i);
+            if (c == ']') {
+                return i + 1;
+            }
+            if (c == '[' || c >= 0x80 || pattern.startsWith("&&", i)) {
+                return -1;
+            }
+            if (c == '\\') {
+                if (i + 1 >= end || !addEscape(pattern.charAt(i + 1), accepts, k)) {
+                    return -1;
+                }
+                i += 2;
+                continue;
+            }
+            if (i + 2 < end && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+                char to = pattern.charAt(i + 2);
+                if (to == '\\' || to == '[' || to >= 0x80 || to < c) {
+                    return -1;
+                }
+                for (char r = c; r <= to; r++) {
+                    accepts[k + r] = true;
+                }
+                i += 3;
+                continue;
+            }
+            accepts[k + c] = true;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Add the characters matched by the escape sequence \c at table offset k.
+     *
+     * @return false if the escape is not an ASCII class or a quoted ASCII character
+     */
+    private static boolean addEscape(char c, boolean[] accepts, int k) {
+        switch (c) {
+            case 'd':
+                addRange('0', '9', accepts, k);
+                return true;
+            case 'w':
+                addRange('a', 'z', accepts, k);
+                addRange('A', 'Z', accepts, k);
+                addRange('0', '9', accepts, k);
+                accepts[k + '_'] = true;
+                return true;
+            case 's':
+                for (char s : new char[] {' ', '\t', '\n', 0x0b, '\f', '\r'}) {
+                    accepts[k + s] = true;
+                }
+                return true;
+            default:
+                if (c < 0x80 && !Character.isLetterOrDigit(c)) {
+                    accepts[k + c] = true;
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    private static void addRange(char from, char to, boolean[] accepts, int k) {
+        for (char c = from; c <= to; c++) {
+            accepts[k + c] = true;
+        }
+    }
+
+    private static boolean isEscaped(String pattern, int i) {
+        int backslashes = 0;
+        while (--i >= 0 && pattern.charAt(i) == '\\') {
+            backslashes++;
+        }
+        return (backslashes % 2) == 1;
+    }
+}
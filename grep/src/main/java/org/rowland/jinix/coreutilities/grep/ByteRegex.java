@@ -0,0 +1,834 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A regular expression compiled into a Thompson NFA over the encoded bytes of a line, for
+ * matching by a LazyDfa in time linear in the length of the line. Only the part of the
+ * java.util.regex syntax that describes a regular language is accepted: literals, ., character
+ * classes of ASCII characters, the predefined classes \d \w \s and their negations, groups,
+ * alternation, greedy and lazy quantifiers, and the anchors ^ $ \A \Z \z. Patterns that use
+ * anything else, such as back references, lookaround, possessive quantifiers, word boundaries
+ * or flags, are left to the regular expression engine and compile() returns null.
+ *
+ * A character that is not ASCII is matched as the byte sequence that encodes it, so that . and
+ * negated classes consume a whole character in UTF-8, as the regular expression engine does on
+ * the decoded line. Bytes that are not valid UTF-8 are decoded to replacement characters in a
+ * way the automaton does not follow, so such lines may have to be left to the regular
+ * expression engine; see matchesMalformed().
+ */
+class ByteRegex {
+
+    static final int BYTES = 0; // consume a byte in sets[set[s]], then go to next[s]
+    static final int SPLIT = 1; // go to every state in splits[s]
+    static final int BEGIN = 2; // only at the start of the line, go to next[s]
+    static final int END = 3; // only at the end of the line, go to next[s]
+    static final int MATCH = 4;
+
+    private static final int MAX_STATES = 10000;
+
+    final int[] kind;
+    final int[] next;
+    final int[][] splits;
+    final int[] set;
+    final boolean[][] sets;
+    final int start;
+    final boolean anchorsEnd; // the pattern contains $, \Z or \z
+    final boolean backtracks; // java.util.regex may backtrack heavily on the pattern
+    final boolean matchesReplacement; // the pattern may match the character U+FFFD in UTF-8
+    final int[] byteClass = new int[256]; // bytes that every set treats alike share a class
+    final int classCount;
+    final int[] classByte; // a byte of each class
+
+    private ByteRegex(Builder builder, int start, boolean backtracks) {
+        int n = builder.count;
+        this.kind = Arrays.copyOf(builder.kind, n);
+        this.next = Arrays.copyOf(builder.next, n);
+        this.splits = Arrays.copyOf(builder.splits, n);
+        this.set = Arrays.copyOf(builder.set, n);
+        this.sets = builder.sets.toArray(new boolean[0][]);
+        this.start = start;
+        this.anchorsEnd = builder.anchorsEnd;
+        this.backtracks = backtracks;
+        this.matchesReplacement = builder.matchesReplacement;
+
+        int classes = 1;
+        for (boolean[] s : sets) {
+            int[] split = new int[classes * 2];
+            Arrays.fill(split, -1);
+            int splitClasses = 0;
+            for (int b = 0; b < 256; b++) {
+                int i = byteClass[b] * 2 + (s[b] ? 1 : 0);
+                if (split[i] < 0) {
+                    split[i] = splitClasses++;
+                }
+                byteClass[b] = split[i];
+            }
+            classes = splitClasses;
+        }
+        this.classCount = classes;
+        this.classByte = new int[classes];
+        for (int b = 255; b >= 0; b--) {
+            classByte[byteClass[b]] = b;
+        }
+    }
+
+    /**
+     * Compile the pattern for an ASCII compatible encoding, or return null if the pattern uses
+     * syntax that an automaton can not match. The pattern must already be known to be valid.
+     */
+    static ByteRegex compile(String pattern, Charset charset) {
+        try {
+            Builder builder = new Builder(pattern, charset);
+            Node node = builder.parseAlternation();
+            if (builder.i < pattern.length()) {
+                return null;
+            }
+            int match = builder.state(MATCH, -1);
+            return new ByteRegex(builder, builder.emit(node, match), backtracks(node));
+        } catch (UnsupportedPatternException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return true if the line ends with a character that $ may match before. Such lines are
+     * left to the regular expression engine.
+     */
+    boolean endsWithLineTerminator(byte[] b, int start, int end) {
+        if (!anchorsEnd || end == start) {
+            return false;
+        }
+        int last = b[end - 1] & 0xff;
+        return last == '\r' || last == 0x85 || last == 0xa8 || last == 0xa9;
+    }
+
+    /**
+     * Return true if the line is not valid UTF-8 and the pattern has a class that may match the
+     * replacement character the regular expression engine decodes such bytes to. A lone
+     * continuation byte or a cut-off sequence is one replacement character there, and matches
+     * nothing in the automaton, so the automaton may miss a match on such a line but never finds
+     * one the regular expression engine would not. Such lines are left to that engine when the
+     * automaton does not match them.
+     */
+    boolean matchesMalformed(byte[] b, int start, int end) {
+        return matchesReplacement && !isValidUtf8(b, start, end);
+    }
+
+    /**
+     * Return true if b[start, end) is valid UTF-8, with no overlong forms, surrogates or code
+     * points above U+10FFFF, which the decoder also rejects.
+     */
+    static boolean isValidUtf8(byte[] b, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int c = b[i++] & 0xff;
+            if (c < 0x80) {
+                continue;
+            }
+            int n, min, max; // the continuation bytes, and the range of the second byte
+            if (c >= 0xc2 && c <= 0xdf) {
+                n = 1;
+                min = 0x80;
+                max = 0xbf;
+            } else if (c >= 0xe0 && c <= 0xef) {
+                n = 2;
+                min = (c == 0xe0 ? 0xa0 : 0x80);
+                max = (c == 0xed ? 0x9f : 0xbf);
+            } else if (c >= 0xf0 && c <= 0xf4) {
+                n = 3;
+                min = (c == 0xf0 ? 0x90 : 0x80);
+                max = (c == 0xf4 ? 0x8f : 0xbf);
+            } else {
+                return false;
+            }
+            if (end - i < n) {
+                return false;
+            }
+            int second = b[i++] & 0xff;
+            if (second < min || second > max) {
+                return false;
+            }
+            for (int k = 1; k < n; k++) {
+                if ((b[i++] & 0xc0) != 0x80) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    LazyDfa newDfa() {
+        return new LazyDfa(this);
+    }
+
+    /**
+     * Return true if java.util.regex may backtrack heavily on the pattern. That is the case
+     * when the pattern has an alternation, which is tried branch by branch at every position, or
+     * a quantifier of variable length inside another. It is also the case when the pattern has
+     * two quantifiers of variable length and one of them can match the first byte of what
+     * follows it, as in a.*b.*c, so that a failed match retries every split of the line between
+     * them. A single such quantifier, as in foo.*bar, backtracks at most once per start.
+     */
+    private static boolean backtracks(Node node) {
+        int[] counts = new int[2]; // variable quantifiers, and those that overlap what follows them
+        if (analyze(node, new boolean[256], counts)) {
+            return true;
+        }
+        return counts[0] >= 2 && counts[1] >= 1;
+    }
+
+    /**
+     * Count the variable quantifiers of node, which is followed by the bytes of follow.
+     *
+     * @return true if node has an alternation or nested variable quantifiers
+     */
+    private static boolean analyze(Node node, boolean[] follow, int[] counts) {
+        switch (node.type) {
+            case Node.SEQUENCE: {
+                boolean[] after = follow;
+                for (int k = node.children.size() - 1; k >= 0; k--) {
+                    Node child = node.children.get(k);
+                    if (analyze(child, after, counts)) {
+                        return true;
+                    }
+                    after = (nullable(child) ? or(first(child), after) : first(child));
+                }
+                return false;
+            }
+            case Node.ALTERNATION:
+                return true;
+            case Node.REPEAT: {
+                Node child = node.children.get(0);
+                int[] inner = new int[2];
+                if (analyze(child, or(first(child), follow), inner)) {
+                    return true;
+                }
+                if (node.max == node.min) {
+                    counts[0] += inner[0];
+                    counts[1] += inner[1];
+                    return false;
+                }
+                if (inner[0] > 0) {
+                    return true;
+                }
+                counts[0]++;
+                boolean[] bytes = first(child);
+                for (int b = 0; b < 256; b++) {
+                    if (bytes[b] && follow[b]) {
+                        counts[1]++;
+                        break;
+                    }
+                }
+                return false;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the bytes that a match of node may start with.
+     */
+    private static boolean[] first(Node node) {
+        boolean[] bytes = new boolean[256];
+        switch (node.type) {
+            case Node.CLASS:
+                System.arraycopy(node.bytes, 0, bytes, 0, 256);
+                if (node.nonAscii) {
+                    Arrays.fill(bytes, 0x80, 256, true);
+                }
+                return bytes;
+            case Node.SEQUENCE:
+                for (Node child : node.children) {
+                    bytes = or(bytes, first(child));
+                    if (!nullable(child)) {
+                        break;
+                    }
+                }
+                return bytes;
+            case Node.ALTERNATION:
+                for (Node child : node.children) {
+                    bytes = or(bytes, first(child));
+                }
+                return bytes;
+            case Node.REPEAT:
+                return (node.max != 0 ? first(node.children.get(0)) : bytes);
+            default:
+                return bytes;
+        }
+    }
+
+    /**
+     * Return true if node may match without consuming a byte.
+     */
+    private static boolean nullable(Node node) {
+        switch (node.type) {
+            case Node.CLASS:
+                return false;
+            case Node.SEQUENCE:
+                return node.children.stream().allMatch(ByteRegex::nullable);
+            case Node.ALTERNATION:
+                return node.children.stream().anyMatch(ByteRegex::nullable);
+            case Node.REPEAT:
+                return node.min == 0 || nullable(node.children.get(0));
+            default:
+                return true;
+        }
+    }
+
+    private static boolean[] or(boolean[] a, boolean[] b) {
+        boolean[] bytes = new boolean[256];
+        for (int k = 0; k < 256; k++) {
+            bytes[k] = a[k] || b[k];
+        }
+        return bytes;
+    }
+
+    private static class UnsupportedPatternException extends RuntimeException {
+        private static final long serialVersionUID = 1394483543949734305L;
+
+        UnsupportedPatternException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A node of the parsed pattern.
+     */
+    private static class Node {
+        static final int CLASS = 0, SEQUENCE = 1, ALTERNATION = 2, REPEAT = 3, BEGIN = 4, END = 5;
+
+        final int type;
+        boolean[] bytes; // the single bytes a CLASS matches
+        boolean nonAscii; // a CLASS also matches every character that is not ASCII
+        boolean dot; // ... except the line terminators
+        List<Node> children;
+        int min, max; // max is -1 for no limit
+
+        Node(int type) {
+            this.type = type;
+        }
+    }
+
+    private static class Builder {
+        private final String pattern;
+        private final Charset charset;
+        private final boolean utf8;
+        private int i;
+
+        int[] kind = new int[64];
+        int[] next = new int[64];
+        int[][] splits = new int[64][];
+        int[] set = new int[64];
+        final List<boolean[]> sets = new ArrayList<>();
+        int count;
+        boolean anchorsEnd;
+        boolean matchesReplacement;
+
+        Builder(String pattern, Charset charset) {
+            this.pattern = pattern;
+            this.charset = charset;
+            this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        }
+
+        Node parseAlternation() {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseSequence());
+            while (i < pattern.length() && pattern.charAt(i) == '|') {
+                i++;
+                alternatives.add(parseSequence());
+            }
+            if (alternatives.size() == 1) {
+                return alternatives.get(0);
+            }
+            Node node = new Node(Node.ALTERNATION);
+            node.children = alternatives;
+            return node;
+        }
+
+        private Node parseSequence() {
+            Node node = new Node(Node.SEQUENCE);
+            node.children = new ArrayList<>();
+            while (i < pattern.length() && pattern.charAt(i) != '|' && pattern.charAt(i) != ')') {
+                if (pattern.startsWith("\\Q", i)) {
+                    parseQuoted(node.children);
+                    continue;
+                }
+                node.children.add(parseQuantifier(parseAtom()));
+            }
+            return node;
+        }
+
+        private Node parseQuantifier(Node atom) {
+            while (i < pattern.length()) {
+                int min, max;
+                char c = pattern.charAt(i);
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    i++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    i++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    i++;
+                } else if (c == '{') {
+                    int close = pattern.indexOf('}', i);
+                    if (close < 0) {
+                        throw new UnsupportedPatternException();
+                    }
+                    String bounds = pattern.substring(i + 1, close);
+                    int comma = bounds.indexOf(',');
+                    try {
+                        if (comma < 0) {
+                            min = max = Integer.parseInt(bounds);
+                        } else {
+                            min = Integer.parseInt(bounds.substring(0, comma));
+                            max = (comma == bounds.length() - 1 ? -1 : Integer.parseInt(bounds.substring(comma + 1)));
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new UnsupportedPatternException();
+                    }
+                    i = close + 1;
+                } else {
+                    return atom;
+                }
+                if (i < pattern.length() && pattern.charAt(i) == '+') {
+                    throw new UnsupportedPatternException(); // possessive
+                }
+                if (i < pattern.length() && pattern.charAt(i) == '?') {
+                    i++; // a lazy quantifier matches the same lines
+                }
+                Node repeat = new Node(Node.REPEAT);
+                repeat.children = List.of(atom);
+                repeat.min = min;
+                repeat.max = max;
+                atom = repeat;
+            }
+            return atom;
+        }
+
+        private Node parseAtom() {
+            int c = pattern.codePointAt(i);
+            i += Character.charCount(c);
+            switch (c) {
+                case '(':
+                    if (pattern.startsWith("?:", i)) {
+                        i += 2;
+                    } else if (pattern.startsWith("?<", i) && i + 2 < pattern.length() &&
+                            Character.isLetter(pattern.charAt(i + 2))) {
+                        i = pattern.indexOf('>', i) + 1;
+                    } else if (pattern.startsWith("?", i)) {
+                        throw new UnsupportedPatternException(); // lookaround, atomic group or flags
+                    }
+                    Node group = parseAlternation();
+                    if (i >= pattern.length() || pattern.charAt(i) != ')') {
+                        throw new UnsupportedPatternException();
+                    }
+                    i++;
+                    return group;
+                case '[':
+                    return parseClass();
+                case '.':
+                    Node dot = new Node(Node.CLASS);
+                    dot.bytes = new boolean[256];
+                    addAscii(dot, "\n\r", true);
+                    dot.dot = true;
+                    return encodeNonAscii(dot);
+                case '^':
+                    return new Node(Node.BEGIN);
+                case '$':
+                    anchorsEnd = true;
+                    return new Node(Node.END);
+                case '\\':
+                    return parseEscape();
+                case '*': case '+': case '?': case '{': case ')': case '|':
+                    throw new UnsupportedPatternException();
+                default:
+                    return literal(c);
+            }
+        }
+
+        private void parseQuoted(List<Node> sequence) {
+            i += 2;
+            int end = pattern.indexOf("\\E", i);
+            if (end < 0) {
+                end = pattern.length();
+            }
+            while (i < end) {
+                int c = pattern.codePointAt(i);
+                i += Character.charCount(c);
+                sequence.add(literal(c));
+            }
+            i = Math.min(end + 2, pattern.length());
+        }
+
+        private Node parseEscape() {
+            if (i >= pattern.length()) {
+                throw new UnsupportedPatternException();
+            }
+            char c = pattern.charAt(i);
+            switch (c) {
+                case 'A':
+                    i++;
+                    return new Node(Node.BEGIN);
+                case 'Z':
+                case 'z':
+                    i++;
+                    anchorsEnd = true;
+                    return new Node(Node.END);
+                default:
+                    Node node = new Node(Node.CLASS);
+                    node.bytes = new boolean[256];
+                    int literal = parseClassEscape(node);
+                    if (literal < 0) {
+                        return encodeNonAscii(node);
+                    }
+                    return literal(literal);
+            }
+        }
+
+        /**
+         * Parse the escape sequence after a backslash. Predefined classes are added to the class
+         * node.
+         *
+         * @return the character the escape stands for, or -1 if it was a predefined class
+         */
+        private int parseClassEscape(Node node) {
+            char c = pattern.charAt(i++);
+            switch (c) {
+                case 'd': addAscii(node, "0123456789", false); return -1;
+                case 'D': addAscii(node, "0123456789", true); return -1;
+                case 'w': addAscii(node, WORD, false); return -1;
+                case 'W': addAscii(node, WORD, true); return -1;
+                case 's': addAscii(node, SPACE, false); return -1;
+                case 'S': addAscii(node, SPACE, true); return -1;
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                case 'a': return 0x07;
+                case 'e': return 0x1b;
+                case 'c':
+                    if (i >= pattern.length()) {
+                        throw new UnsupportedPatternException();
+                    }
+                    return pattern.charAt(i++) ^ 64;
+                case '0': {
+                    int value = 0, digits = 0;
+                    while (digits < 3 && i < pattern.length() && pattern.charAt(i) >= '0' && pattern.charAt(i) <= '7' &&
+                            value * 8 + (pattern.charAt(i) - '0') <= 0377) {
+                        value = value * 8 + (pattern.charAt(i++) - '0');
+                        digits++;
+                    }
+                    return value;
+                }
+                case 'x':
+                    if (i < pattern.length() && pattern.charAt(i) == '{') {
+                        int close = pattern.indexOf('}', i);
+                        int value = parseHex(i + 1, close);
+                        i = close + 1;
+                        return value;
+                    }
+                    i += 2;
+                    return parseHex(i - 2, i);
+                case 'u':
+                    i += 4;
+                    return parseHex(i - 4, i);
+                default:
+                    if (c < 0x80 && !Character.isLetterOrDigit(c)) {
+                        return c;
+                    }
+                    throw new UnsupportedPatternException(); // back reference, boundary or property
+            }
+        }
+
+        private int parseHex(int from, int to) {
+            try {
+                return Integer.parseInt(pattern.substring(from, to), 16);
+            } catch (RuntimeException e) {
+                throw new UnsupportedPatternException();
+            }
+        }
+
+        private Node parseClass() {
+            Node node = new Node(Node.CLASS);
+            node.bytes = new boolean[256];
+            boolean negate = false;
+            if (i < pattern.length() && pattern.charAt(i) == '^') {
+                negate = true;
+                i++;
+            }
+            if (i < pattern.length() && pattern.charAt(i) == ']') {
+                throw new UnsupportedPatternException();
+            }
+            while (true) {
+                if (i >= pattern.length()) {
+                    throw new UnsupportedPatternException();
+                }
+                char c = pattern.charAt(i);
+                if (c == ']') {
+                    i++;
+                    break;
+                }
+                if (c == '[' || pattern.startsWith("&&", i)) {
+                    throw new UnsupportedPatternException();
+                }
+                int from;
+                if (c == '\\') {
+                    i++;
+                    if (i >= pattern.length() || pattern.charAt(i) == 'Q') {
+                        throw new UnsupportedPatternException();
+                    }
+                    from = parseClassEscape(node);
+                    if (from < 0) {
+                        continue;
+                    }
+                } else {
+                    from = c;
+                    i++;
+                }
+                int to = from;
+                if (i + 1 < pattern.length() && pattern.charAt(i) == '-' && pattern.charAt(i + 1) != ']') {
+                    i++;
+                    c = pattern.charAt(i);
+                    if (c == '[') {
+                        throw new UnsupportedPatternException();
+                    }
+                    if (c == '\\') {
+                        i++;
+                        to = parseClassEscape(node);
+                    } else {
+                        to = c;
+                        i++;
+                    }
+                }
+                if (from >= 0x80 || to >= 0x80 || to < from) {
+                    throw new UnsupportedPatternException();
+                }
+                for (int b = from; b <= to; b++) {
+                    node.bytes[b] = true;
+                }
+            }
+            if (negate) {
+                for (int b = 0; b < 0x80; b++) {
+                    node.bytes[b] = !node.bytes[b];
+                }
+                node.nonAscii = !node.nonAscii;
+            }
+            return encodeNonAscii(node);
+        }
+
+        private static final String WORD = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_";
+        private static final String SPACE = " \t\n\u000b\f\r";
+
+        private static void addAscii(Node node, String members, boolean negate) {
+            for (int b = 0; b < 0x80; b++) {
+                if ((members.indexOf(b) >= 0) != negate) {
+                    node.bytes[b] = true;
+                }
+            }
+            if (negate) {
+                node.nonAscii = true;
+            }
+        }
+
+        /**
+         * In a single byte encoding every byte is a character, so the characters that are not
+         * ASCII are added to the bytes the class matches.
+         */
+        private Node encodeNonAscii(Node node) {
+            if (node.nonAscii && !utf8) {
+                for (int b = 0x80; b < 0x100; b++) {
+                    node.bytes[b] = true;
+                }
+                if (node.dot && charset.equals(StandardCharsets.ISO_8859_1)) {
+                    node.bytes[0x85] = false;
+                }
+                node.nonAscii = false;
+            }
+            return node;
+        }
+
+        private Node literal(int c) {
+            if (c < 0x80) {
+                Node node = new Node(Node.CLASS);
+                node.bytes = new boolean[256];
+                node.bytes[c] = true;
+                return node;
+            }
+            String s = new String(Character.toChars(c));
+            if (!charset.newEncoder().canEncode(s)) {
+                throw new UnsupportedPatternException();
+            }
+            if (utf8 && c == 0xfffd) {
+                matchesReplacement = true;
+            }
+            Node sequence = new Node(Node.SEQUENCE);
+            sequence.children = new ArrayList<>();
+            for (byte b : s.getBytes(charset)) {
+                Node node = new Node(Node.CLASS);
+                node.bytes = new boolean[256];
+                node.bytes[b & 0xff] = true;
+                sequence.children.add(node);
+            }
+            return sequence;
+        }
+
+        /**
+         * Add the states that match the node and then continue at state next.
+         *
+         * @return the first state
+         */
+        int emit(Node node, int next) {
+            switch (node.type) {
+                case Node.CLASS: {
+                    int s = state(BYTES, next);
+                    set[s] = addSet(node.bytes);
+                    if (node.nonAscii) {
+                        matchesReplacement = true;
+                        return split(s, emitUtf8(next, node.dot));
+                    }
+                    return s;
+                }
+                case Node.SEQUENCE:
+                    for (int k = node.children.size() - 1; k >= 0; k--) {
+                        next = emit(node.children.get(k), next);
+                    }
+                    return next;
+                case Node.ALTERNATION: {
+                    int[] alternatives = new int[node.children.size()];
+                    for (int k = 0; k < alternatives.length; k++) {
+                        alternatives[k] = emit(node.children.get(k), next);
+                    }
+                    int s = state(SPLIT, -1);
+                    splits[s] = alternatives;
+                    return s;
+                }
+                case Node.REPEAT: {
+                    Node child = node.children.get(0);
+                    int first;
+                    if (node.max < 0) {
+                        int loop = state(SPLIT, -1);
+                        int body = emit(child, loop); // may replace splits
+                        splits[loop] = new int[] {body, next};
+                        first = loop;
+                    } else {
+                        first = next;
+                        for (int k = node.min; k < node.max; k++) {
+                            first = split(emit(child, first), next);
+                        }
+                    }
+                    for (int k = 0; k < node.min; k++) {
+                        first = emit(child, first);
+                    }
+                    return first;
+                }
+                case Node.BEGIN:
+                    return state(BEGIN, next);
+                case Node.END:
+                    return state(END, next);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        /**
+         * Add the states that match one UTF-8 encoded character that is not ASCII, or one of the
+         * bytes that never occur in UTF-8, each of which decodes to a replacement character. A
+         * lone continuation byte is not matched, since that would let a match start inside a
+         * character. For . the line terminators U+0085, U+2028 and U+2029 are not matched.
+         */
+        private int emitUtf8(int next, boolean dot) {
+            int cont = bytesState(range(0x80, 0xbf), next);
+            int cont2 = bytesState(range(0x80, 0xbf), cont);
+            int cont3 = bytesState(range(0x80, 0xbf), cont2);
+            List<Integer> alternatives = new ArrayList<>();
+            alternatives.add(bytesState(union(range(0xc0, 0xc1), range(0xf5, 0xff)), next));
+            boolean[] twoByte = range(0xc2, 0xdf);
+            boolean[] threeByte = union(range(0xe1, 0xec), range(0xee, 0xef));
+            if (dot) {
+                twoByte[0xc2] = false;
+                boolean[] nel = range(0x80, 0xbf);
+                nel[0x85] = false;
+                alternatives.add(bytesState(range(0xc2, 0xc2), bytesState(nel, next)));
+                threeByte[0xe2] = false;
+                boolean[] separators = range(0x80, 0xbf);
+                separators[0xa8] = false;
+                separators[0xa9] = false;
+                alternatives.add(bytesState(range(0xe2, 0xe2), split(
+                        bytesState(range(0x81, 0xbf), cont),
+                        bytesState(range(0x80, 0x80), bytesState(separators, next)))));
+            }
+            alternatives.add(bytesState(twoByte, cont));
+            alternatives.add(bytesState(range(0xe0, 0xe0), bytesState(range(0xa0, 0xbf), cont)));
+            alternatives.add(bytesState(threeByte, cont2));
+            alternatives.add(bytesState(range(0xed, 0xed), bytesState(range(0x80, 0x9f), cont)));
+            alternatives.add(bytesState(range(0xf0, 0xf0), bytesState(range(0x90, 0xbf), cont2)));
+            alternatives.add(bytesState(range(0xf1, 0xf3), cont3));
+            alternatives.add(bytesState(range(0xf4, 0xf4), bytesState(range(0x80, 0x8f), cont2)));
+            int s = state(SPLIT, -1);
+            splits[s] = alternatives.stream().mapToInt(Integer::intValue).toArray();
+            return s;
+        }
+
+        private static boolean[] range(int from, int to) {
+            boolean[] bytes = new boolean[256];
+            Arrays.fill(bytes, from, to + 1, true);
+            return bytes;
+        }
+
+        private static boolean[] union(boolean[] a, boolean[] b) {
+            for (int k = 0; k < 256; k++) {
+                a[k] |= b[k];
+            }
+            return a;
+        }
+
+        private int bytesState(boolean[] bytes, int next) {
+            int s = state(BYTES, next);
+            set[s] = addSet(bytes);
+            return s;
+        }
+
+        private int split(int a, int b) {
+            int s = state(SPLIT, -1);
+            splits[s] = new int[] {a, b};
+            return s;
+        }
+
+        private int addSet(boolean[] bytes) {
+            for (int k = 0; k < sets.size(); k++) {
+                if (Arrays.equals(sets.get(k), bytes)) {
+                    return k;
+                }
+            }
+            sets.add(bytes);
+            return sets.size() - 1;
+        }
+
+        int state(int type, int nextState) {
+            if (count == MAX_STATES) {
+                throw new UnsupportedPatternException();
+            }
+            if (count == kind.length) {
+                int size = count * 2;
+                kind = Arrays.copyOf(kind, size);
+                next = Arrays.copyOf(next, size);
+                splits = Arrays.copyOf(splits, size);
+                set = Arrays.copyOf(set, size);
+            }
+            kind[count] = type;
+            next[count] = nextState;
+            return count++;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.rowland.jinix.coreutilities.grep;
+
+/**
+ * Fixed size ring of the most recent unselected lines, held for printing as before context (-B).
+ * Each entry is the stream offsets of a line in a LineScanner, which is asked to retain the bytes
+ * of the oldest entry, so lines are never copied. Once full, adding a line drops the oldest one.
+ */
+class ContextRing {
+
+    private final long[] starts;
+    private final long[] ends;
+    private final int[] lineNumbers;
+    private int head; // index of the oldest entry
+    private int size;
+
+    ContextRing(int capacity) {
+        starts = new long[capacity];
+        ends = new long[capacity];
+        lineNumbers = new int[capacity];
+    }
+
+    void add(long start, long end, int lineNumber) {
+        int i = (head + size) % starts.length;
+        if (size == starts.length) {
+            head = (head + 1) % starts.length;
+        } else {
+            size++;
+        }
+        starts[i] = start;
+        ends[i] = end;
+        lineNumbers[i] = lineNumber;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the stream offset of the start of the oldest line, or -1 if the ring is empty.
+     */
+    long oldestStart() {
+        return (size > 0 ? starts[head] : -1);
+    }
+
+    long start(int n) {
+        return starts[(head + n) % starts.length];
+    }
+
+    long end(int n) {
+        return ends[(head + n) % starts.length];
+    }
+
+    int lineNumber(int n) {
+        return lineNumbers[(head + n) % starts.length];
+    }
+}
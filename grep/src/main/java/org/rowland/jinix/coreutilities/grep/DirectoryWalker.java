@@ -0,0 +1,216 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Expands the FILE operands of a recursive grep into the regular files beneath them, in depth
+ * first order with the entries of each directory sorted by name. Directories are listed, and the
+ * attributes of their entries read, by tasks on a fork-join pool. When the walk enters a
+ * directory, the listings of all of its subdirectories are forked, so idle workers steal
+ * listings ahead of the walk while the files already found are being searched. Only the
+ * directories on the path to the current one, and the listings of their children, are held in
+ * memory. A directory that is also on that path, reached through a symbolic link with -R, is
+ * reported as a recursive directory loop and not entered.
+ */
+class DirectoryWalker implements Iterator<Operand> {
+
+    private final ForkJoinPool pool;
+    private final Iterator<String> roots;
+    private final boolean followLinks;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final Deque<Iterator<Entry>> stack = new ArrayDeque<>();
+    private final Deque<Object> keys = new ArrayDeque<>(); // the file key of each directory on the stack
+    private Operand next;
+
+    DirectoryWalker(List<String> roots, ForkJoinPool pool, boolean followLinks,
+                    List<PathMatcher> includes, List<PathMatcher> excludes) {
+        this.pool = pool;
+        this.roots = roots.iterator();
+        this.followLinks = followLinks;
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Operand next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Operand rtrn = next;
+        next = null;
+        return rtrn;
+    }
+
+    private Operand advance() {
+        while (true) {
+            Iterator<Entry> entries = stack.peek();
+            if (entries != null) {
+                if (!entries.hasNext()) {
+                    stack.pop();
+                    keys.pop();
+                    continue;
+                }
+                Entry entry = entries.next();
+                if (entry.loop) {
+                    return new Operand(entry.path.toString(), true,
+                            "grep: warning: " + entry.path + ": recursive directory loop");
+                }
+                if (entry.listing != null) {
+                    Operand error = enter(entry.path, entry.key, entry.listing);
+                    if (error != null) {
+                        return error;
+                    }
+                } else if (isSelected(entry.path)) {
+                    return new Operand(entry.path.toString(), true, null);
+                }
+                continue;
+            }
+
+            if (!roots.hasNext()) {
+                return null;
+            }
+            String root = roots.next();
+            if (root.equals("-")) {
+                return new Operand(root, false, null);
+            }
+            Path path = Paths.get(root);
+            BasicFileAttributes attr;
+            try {
+                attr = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                attr = null;
+            }
+            if (attr == null || !attr.isDirectory()) {
+                return new Operand(root, false, null);
+            }
+            Operand error = enter(path, attr.fileKey(), pool.submit(new ListDirectory(path, followLinks)));
+            if (error != null) {
+                return error;
+            }
+        }
+    }
+
+    /**
+     * Push the listing of a directory onto the walk and fork the listings of its subdirectories,
+     * except those that are the directory itself or one of the directories above it.
+     *
+     * @param key the file key of the directory, or null if the file system has none
+     * @return an operand reporting the error if the directory could not be listed, otherwise null
+     */
+    private Operand enter(Path dir, Object key, ForkJoinTask<List<Entry>> listing) {
+        List<Entry> entries;
+        try {
+            entries = listing.join();
+        } catch (RuntimeException e) {
+            return new Operand(dir.toString(), true, "grep: " + dir + ": Error reading directory");
+        }
+        keys.push(key != null ? key : new Object());
+        stack.push(entries.iterator());
+        for (Entry entry : entries) {
+            if (entry.directory) {
+                if (entry.key != null && keys.contains(entry.key)) {
+                    entry.loop = true;
+                } else {
+                    entry.listing = pool.submit(new ListDirectory(entry.path, followLinks));
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isSelected(Path path) {
+        for (PathMatcher exclude : excludes) {
+            if (exclude.matches(path)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (PathMatcher include : includes) {
+            if (include.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Entry {
+        final Path path;
+        final boolean directory;
+        final Object key; // the file key of a directory, or null
+        ForkJoinTask<List<Entry>> listing; // forked when the parent directory is entered
+        boolean loop; // a directory on the path to this entry
+
+        Entry(Path path, boolean directory, Object key) {
+            this.path = path;
+            this.directory = directory;
+            this.key = key;
+        }
+    }
+
+    /**
+     * List a directory and read the attributes of its entries. Only directories and regular files
+     * are returned. Without followLinks, symbolic links are not followed and are skipped.
+     */
+    private static class ListDirectory extends RecursiveTask<List<Entry>> {
+        private static final long serialVersionUID = 3245002439014493505L;
+
+        private final Path dir;
+        private final boolean followLinks;
+
+        ListDirectory(Path dir, boolean followLinks) {
+            this.dir = dir;
+            this.followLinks = followLinks;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            LinkOption[] options = (followLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS});
+            List<Entry> entries = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path path : ds) {
+                    BasicFileAttributes attr;
+                    try {
+                        attr = Files.readAttributes(path, BasicFileAttributes.class, options);
+                    } catch (IOException e) {
+                        continue; // the entry was removed or is a broken link
+                    }
+                    if (attr.isDirectory() || attr.isRegularFile()) {
+                        entries.add(new Entry(path, attr.isDirectory(), (attr.isDirectory() ? attr.fileKey() : null)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            entries.sort(Comparator.comparing(e -> e.path.getFileName().toString()));
+            return entries;
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package org.rowland.jinix.coreutilities.grep;
 
 import org.apache.commons.cli.*;
+import org.rowland.jinix.coreutilities.globutils.GlobUtils;
+import org.rowland.jinix.coreutilities.globutils.InvalidGlobException;
+import org.rowland.jinix.coreutilities.gziputils.GzipUtils;
 import org.rowland.jinix.io.JinixFile;
 import org.rowland.jinix.io.JinixFileInputStream;
 
 import java.io.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
+import java.nio.file.PathMatcher;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The grep utility shall search the input files, selecting lines matching the pattern; The pattern is
@@ -17,6 +25,12 @@ import java.util.regex.Pattern;
  */
 public class Grep {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BINARY_SNIFF_SIZE = 8 * 1024;
+
+    private static volatile boolean linesSelected; // set when any input has a selected line
+    private static int decompressThreads; // threads to inflate each gzip input with, or 0 without -z
+
     public static void main(String[] args) {
 
         CommandLine cmdLine = parseCommandLineOptions(args);
@@ -24,87 +38,388 @@ public class Grep {
 
         args = cmdLine.getArgs();
 
-        if (args.length == 0) {
+        List<String> patternStrings = new ArrayList<>();
+        if (cmdLine.hasOption('e')) {
+            patternStrings.addAll(Arrays.asList(cmdLine.getOptionValues('e')));
+        }
+        if (cmdLine.hasOption('f')) {
+            for (String patternFile : cmdLine.getOptionValues('f')) {
+                try {
+                    readPatternFile(patternFile, patternStrings);
+                } catch (FileNotFoundException e) {
+                    System.err.println("grep: " + patternFile + ": File not found");
+                    return;
+                } catch (IOException e) {
+                    System.err.println("grep: " + patternFile + ": Error reading file");
+                    return;
+                }
+            }
+        }
+
+        int firstFile = 0;
+        if (!cmdLine.hasOption('e') && !cmdLine.hasOption('f')) {
+            if (args.length == 0) {
+                return;
+            }
+            patternStrings.add(args[0]);
+            firstFile = 1;
+        }
+
+        if (patternStrings.isEmpty()) {
+            return; // an empty pattern file matches nothing
+        }
+
+        GrepPattern.Engine engine = GrepPattern.Engine.AUTO;
+        if (cmdLine.hasOption("engine")) {
+            try {
+                engine = GrepPattern.Engine.valueOf(cmdLine.getOptionValue("engine").toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("grep: invalid engine: " + cmdLine.getOptionValue("engine"));
+                return;
+            }
+        }
+
+        GrepPattern pattern = GrepPattern.compile(patternStrings, Charset.defaultCharset(), engine);
+        if (engine == GrepPattern.Engine.DFA && pattern.needsRegexEngine()) {
+            System.err.println("grep: the dfa engine can not match the pattern: it has back references, lookaround, boundaries, flags or classes of characters that are not ASCII");
             return;
         }
 
-        String patternString = args[0];
+        if (cmdLine.hasOption('m')) {
+            try {
+                Long.parseLong(cmdLine.getOptionValue('m'));
+            } catch (NumberFormatException e) {
+                System.err.println("grep: invalid max count: " + cmdLine.getOptionValue('m'));
+                return;
+            }
+        }
+        for (char option : new char[] {'A', 'B', 'C'}) {
+            try {
+                if (cmdLine.hasOption(option) && Integer.parseInt(cmdLine.getOptionValue(option)) < 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("grep: " + cmdLine.getOptionValue(option) + ": invalid context length argument");
+                return;
+            }
+        }
 
-        Pattern pattern = Pattern.compile(patternString);
+        boolean recursive = cmdLine.hasOption('r') || cmdLine.hasOption('R');
 
-        if (args.length == 1) {
-            String[] newArgs = new String[2];
-            newArgs[0] = args[0];
-            newArgs[1] = "-";
-            args = newArgs;
+        List<String> files = new ArrayList<>(Arrays.asList(args).subList(firstFile, args.length));
+        if (files.isEmpty()) {
+            files.add(recursive ? "" : "-");
         }
 
-        for (int i = 1; i < args.length; i++) {
+        boolean withFileName = cmdLine.hasOption('H') ||
+                ((files.size() > 1 || recursive) && !cmdLine.hasOption('h'));
 
-            InputStream is;
-            if (args[i].equals("-")) {
-                is = System.in;
+        int threads = (recursive ? Runtime.getRuntime().availableProcessors() : 1);
+        if (cmdLine.hasOption('j')) {
+            try {
+                threads = Integer.parseInt(cmdLine.getOptionValue('j'));
+            } catch (NumberFormatException e) {
+                System.err.println("grep: invalid number of threads: " + cmdLine.getOptionValue('j'));
+                return;
+            }
+        }
+
+        boolean parallel = threads > 1 && (files.size() > 1 || recursive);
+        if (cmdLine.hasOption('z')) {
+            // files searched in parallel are each inflated by one thread
+            decompressThreads = (parallel ? 1 : Runtime.getRuntime().availableProcessors());
+        }
+
+        ForkJoinPool pool = null;
+        Iterator<Operand> operands;
+        if (recursive) {
+            List<PathMatcher> includes = new ArrayList<>();
+            List<PathMatcher> excludes = new ArrayList<>();
+            try {
+                addMatchers(cmdLine.getOptionValues("include"), includes);
+                addMatchers(cmdLine.getOptionValues("exclude"), excludes);
+            } catch (InvalidGlobException e) {
+                System.err.println("grep: " + e.getMessage());
+                return;
+            }
+            pool = new ForkJoinPool(Math.max(threads, 1));
+            operands = new DirectoryWalker(files, pool, cmdLine.hasOption('R'), includes, excludes);
+        } else {
+            List<Operand> fileOperands = new ArrayList<>(files.size());
+            for (String file : files) {
+                fileOperands.add(new Operand(file, false, null));
+            }
+            operands = fileOperands.iterator();
+        }
+
+        try {
+            if (parallel) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(threads);
+                }
+                grepFilesParallel(operands, pattern, withFileName, cmdLine, pool, threads);
             } else {
-                JinixFile f = new JinixFile(args[i]);
+                GroupSeparator separator = new GroupSeparator(false);
+                while (operands.hasNext()) {
+                    grepOperand(operands.next(), pattern, withFileName, cmdLine, System.out, System.err, separator);
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
 
+        System.out.flush();
+        if (!linesSelected) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Add the patterns in a file, one per line, to the list of patterns.
+     */
+    private static void readPatternFile(String patternFile, List<String> patternStrings) throws IOException {
+        InputStream is = (patternFile.equals("-") ? System.in : new JinixFileInputStream(new JinixFile(patternFile)));
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                patternStrings.add(line);
+            }
+        } finally {
+            if (is != System.in) {
+                is.close();
+            }
+        }
+    }
+
+    private static void addMatchers(String[] globs, List<PathMatcher> matchers) throws InvalidGlobException {
+        if (globs != null) {
+            for (String glob : globs) {
+                matchers.add(GlobUtils.fileNameMatcher(glob));
+            }
+        }
+    }
+
+    /**
+     * Search the operands on a pool of threads. The output of each file is buffered in memory and
+     * written in operand order as soon as all of the files before it have been written, so the
+     * output is identical to a serial search. At most twice as many files as there are threads
+     * are searched ahead of the file being written.
+     */
+    private static void grepFilesParallel(Iterator<Operand> operands, GrepPattern pattern, boolean withFileName,
+                                          CommandLine cmdLine, ExecutorService executor, int threads) {
+        try {
+            int window = threads * 2;
+            Deque<OperandOutput> pending = new ArrayDeque<>(window);
+            boolean groupWritten = false;
+            while (operands.hasNext() || !pending.isEmpty()) {
+                while (operands.hasNext() && pending.size() < window) {
+                    Operand operand = operands.next();
+                    OperandOutput output = new OperandOutput(operand.name);
+                    output.done = executor.submit(() -> grepOperand(operand, pattern, withFileName, cmdLine,
+                            new PrintStream(output.out), new PrintStream(output.err), output.separator));
+                    pending.add(output);
+                }
+                OperandOutput output = pending.remove();
+                Throwable failure = null;
                 try {
-                    is = new JinixFileInputStream(f);
-                } catch (FileNotFoundException e) {
-                    System.err.println("grep: " + args[i] + ": File not found");
-                    continue;
+                    output.done.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                }
+                if (output.separator.deferred && groupWritten) {
+                    System.out.println(GroupSeparator.SEPARATOR);
+                }
+                groupWritten |= output.separator.groupPrinted;
+                output.out.writeTo(System.out);
+                output.err.writeTo(System.err);
+                if (failure != null) {
+                    // report what failed the search of this file, as an I/O error is, and go on to the next
+                    System.err.println("grep: " + output.name + ": " +
+                            (failure.getMessage() != null ? failure.getMessage() : failure));
                 }
             }
+        } catch (InterruptedException | IOException e) {
+            System.err.println("grep: " + e.getMessage());
+        }
+    }
+
+    private static void grepOperand(Operand operand, GrepPattern pattern, boolean withFileName, CommandLine cmdLine,
+                                    PrintStream out, PrintStream err, GroupSeparator separator) {
+        if (operand.error != null) {
+            err.println(operand.error);
+            return;
+        }
+
+        InputStream is;
+        if (operand.name.equals("-")) {
+            is = System.in;
+        } else {
+            JinixFile f = new JinixFile(operand.name);
 
             try {
-                String arg = null;
-                if (cmdLine.hasOption('H') ||
-                        (args.length > 2 && !cmdLine.hasOption('h'))) {
-                    arg = args[i];
-                }
-                grepFile(arg, is, pattern, cmdLine);
-            } catch (IOException e) {
-                System.err.println("grep: " + args[i] + ": Error reading file");
-                e.printStackTrace();
+                is = new JinixFileInputStream(f);
+            } catch (FileNotFoundException e) {
+                err.println("grep: " + operand.name + ": File not found");
+                return;
             }
+        }
 
-            try {
-                is.close();
-            } catch (IOException e) {
-                System.err.println("grep: " + args[i] + ": Error closing file");
+        try {
+            if (decompressThreads > 0) {
+                is = GzipUtils.decompressIfGzip(is, decompressThreads);
+            }
+            if (grepFile(operand.name, withFileName, is, pattern, cmdLine, out, separator, operand.walked) > 0) {
+                linesSelected = true;
+                if (cmdLine.hasOption('q')) {
+                    System.exit(0);
+                }
             }
+        } catch (IOException e) {
+            err.println("grep: " + operand.name + ": Error reading file");
+            e.printStackTrace(err);
         }
 
-        System.out.flush();
+        try {
+            is.close();
+        } catch (IOException e) {
+            err.println("grep: " + operand.name + ": Error closing file");
+        }
+        out.flush();
     }
 
-    private static void grepFile(String arg, InputStream fileStream, Pattern pattern, CommandLine cmdLine) throws IOException {
-        BufferedReader is = new BufferedReader(new InputStreamReader(fileStream));
+    /**
+     * Search one input and write the selected lines, or the count or file name requested. Reading
+     * stops as soon as the output for the file is known: at the first selected line for -l, -L
+     * and -q, and at the -m limit once any after context has been written. Lines held for before
+     * context are kept as slices of the scanner's buffer in a ContextRing.
+     *
+     * @return the number of lines selected
+     */
+    private static int grepFile(String name, boolean withFileName, InputStream fileStream, GrepPattern pattern,
+                                CommandLine cmdLine, PrintStream out, GroupSeparator separator,
+                                boolean skipBinary) throws IOException {
+        LineScanner is = new LineScanner(fileStream, BUFFER_SIZE);
+        if (skipBinary && is.isBinary(BINARY_SNIFF_SIZE)) {
+            return 0;
+        }
+        LineMatcher matcher = pattern.matcher();
+
+        boolean invert = cmdLine.hasOption('v');
+        boolean quiet = cmdLine.hasOption('q');
+        boolean listFiles = cmdLine.hasOption('l');
+        boolean listNonMatching = cmdLine.hasOption('L');
+        boolean count = cmdLine.hasOption('c');
+        boolean lineNumbers = cmdLine.hasOption('n');
+        long maxCount = (cmdLine.hasOption('m') ? Long.parseLong(cmdLine.getOptionValue('m')) : -1);
+        int after = contextOption(cmdLine, 'A');
+        int before = contextOption(cmdLine, 'B');
+        String arg = (withFileName ? name : null);
+        if (name.equals("-")) {
+            name = "(standard input)";
+        }
+        boolean printLines = !(quiet || listFiles || listNonMatching || count);
+        ContextRing beforeContext = (printLines && before > 0 ? new ContextRing(before) : null);
+        boolean separateGroups = printLines &&
+                (cmdLine.hasOption('A') || cmdLine.hasOption('B') || cmdLine.hasOption('C'));
 
         int matchCount = 0, lineCount = 0;
-        String line;
-        while ((line = is.readLine()) != null) {
+        int lastPrinted = -1; // the number of the last line printed; the first group is always separated
+        int afterRemaining = 0; // the number of lines still to print as after context
+        while (is.next()) {
             lineCount++;
-            Matcher m = pattern.matcher(line);
-            boolean match = m.find();
-            if ((match && !cmdLine.hasOption('v')) || (!match && cmdLine.hasOption('v'))) {
+            if (matchCount == maxCount) {
+                if (afterRemaining == 0) {
+                    break;
+                }
+                printLine(out, arg, lineNumbers, lineCount, '-', is.buffer(), is.lineStart(), is.lineEnd());
+                afterRemaining--;
+                continue;
+            }
+            boolean match = matcher.find(is.buffer(), is.lineStart(), is.lineEnd());
+            if (match != invert) {
                 matchCount++;
-                if (!cmdLine.hasOption('c')) {
-                    if (arg != null) {
-                        System.out.print(arg+":");
+                if (!printLines) {
+                    if (quiet || listFiles || listNonMatching) {
+                        break;
                     }
-                    if (cmdLine.hasOption('n')) {
-                        System.out.print(lineCount+":");
+                    continue;
+                }
+                int firstLine = lineCount;
+                if (beforeContext != null && beforeContext.size() > 0) {
+                    firstLine = beforeContext.lineNumber(0);
+                }
+                if (separateGroups && firstLine > lastPrinted + 1) {
+                    separator.beforeGroup(out);
+                }
+                if (beforeContext != null) {
+                    byte[] buf = is.buffer();
+                    for (int i = 0; i < beforeContext.size(); i++) {
+                        printLine(out, arg, lineNumbers, beforeContext.lineNumber(i), '-', buf,
+                                is.indexOf(beforeContext.start(i)), is.indexOf(beforeContext.end(i)));
                     }
-                    System.out.println(line);
+                    beforeContext.clear();
+                    is.retain(-1);
                 }
+                printLine(out, arg, lineNumbers, lineCount, ':', is.buffer(), is.lineStart(), is.lineEnd());
+                lastPrinted = lineCount;
+                afterRemaining = after;
+            } else if (afterRemaining > 0) {
+                printLine(out, arg, lineNumbers, lineCount, '-', is.buffer(), is.lineStart(), is.lineEnd());
+                lastPrinted = lineCount;
+                afterRemaining--;
+            } else if (beforeContext != null) {
+                beforeContext.add(is.offsetOf(is.lineStart()), is.offsetOf(is.lineEnd()), lineCount);
+                is.retain(beforeContext.oldestStart());
             }
         }
-        if (cmdLine.hasOption('c')) {
+        if (quiet) {
+            return matchCount;
+        }
+        if (listFiles || listNonMatching) {
+            if ((matchCount > 0) == listFiles) {
+                out.println(name);
+            }
+        } else if (count) {
             if (arg != null) {
-                System.out.print(arg+":");
+                out.print(arg+":");
             }
-            System.out.println(matchCount);
+            out.println(matchCount);
         }
+        return matchCount;
+    }
+
+    /**
+     * Write a selected line, with separator ':', or a context line, with separator '-'.
+     */
+    private static void printLine(PrintStream out, String arg, boolean lineNumbers, int lineNumber, char separator,
+                                  byte[] buf, int start, int end) {
+        if (arg != null) {
+            out.print(arg);
+            out.print(separator);
+        }
+        if (lineNumbers) {
+            out.print(lineNumber);
+            out.print(separator);
+        }
+        out.write(buf, start, end - start);
+        out.println();
+    }
+
+    /**
+     * Return the number of lines of after (-A) or before (-B) context requested, either directly
+     * or with -C.
+     */
+    private static int contextOption(CommandLine cmdLine, char option) {
+        if (cmdLine.hasOption(option)) {
+            return Integer.parseInt(cmdLine.getOptionValue(option));
+        }
+        if (cmdLine.hasOption('C')) {
+            return Integer.parseInt(cmdLine.getOptionValue('C'));
+        }
+        return 0;
     }
 
     private static CommandLine parseCommandLineOptions(String[] args) {
@@ -118,6 +433,22 @@ public class Grep {
         options.addOption("h", "no-filename", false, "Suppress  the  prefixing  of  filenames  on output when multiple files are searched.");
         options.addOption("n", "line-number", false, "Prefix each line of output with the line number within its input file.");
         options.addOption("v", "invert-match", false, "Invert the sense of matching, to select non-matching lines.");
+        options.addOption("l", "files-with-matches", false, "Print only the name of each input file that has a selected line. Reading of a file stops at its first selected line.");
+        options.addOption("L", "files-without-match", false, "Print only the name of each input file that has no selected line. Reading of a file stops at its first selected line.");
+        options.addOption("q", "quiet", false, "Write nothing to standard output. Exit immediately with zero status if any line is selected.");
+        options.addOption("m", "max-count", true, "Stop reading a file after NUM selected lines.");
+        options.addOption("A", "after-context", true, "Print NUM lines of trailing context after selected lines.");
+        options.addOption("B", "before-context", true, "Print NUM lines of leading context before selected lines.");
+        options.addOption("C", "context", true, "Print NUM lines of output context.");
+        options.addOption(Option.builder("e").longOpt("regexp").hasArg().argName("PATTERN").desc("Use PATTERN as the pattern. May be given more than once; a line is selected if it matches any pattern.").build());
+        options.addOption(Option.builder("f").longOpt("file").hasArg().argName("FILE").desc("Obtain patterns from FILE, one per line.").build());
+        options.addOption("z", "decompress", false, "Decompress input that is gzip compressed before searching it. Other input is searched unchanged.");
+        options.addOption("j", "threads", true, "Search up to NUM files in parallel. Output is written in the order of the FILE arguments.");
+        options.addOption("r", "recursive", false, "Read all files under each directory, recursively, following symbolic links only if they are on the command line. Binary files are skipped.");
+        options.addOption("R", "dereference-recursive", false, "Read all files under each directory, recursively. Follow all symbolic links.");
+        options.addOption(Option.builder().longOpt("include").hasArg().argName("GLOB").desc("Search only files whose base name matches GLOB.").build());
+        options.addOption(Option.builder().longOpt("engine").hasArg().argName("ENGINE").desc("Match regular expressions with ENGINE: dfa, which takes time linear in the length of each line, regex, which is java.util.regex, or auto, the default, which uses dfa for the patterns on which java.util.regex may backtrack heavily, such as alternations and nested or overlapping quantifiers.").build());
+        options.addOption(Option.builder().longOpt("exclude").hasArg().argName("GLOB").desc("Skip files whose base name matches GLOB.").build());
 
 
         try {
@@ -136,4 +467,41 @@ public class Grep {
         }
     }
 
+    private static class OperandOutput {
+        final String name;
+        Future<?> done; // completes when the file has been searched
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        final GroupSeparator separator = new GroupSeparator(true);
+
+        OperandOutput(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Writes the -- line that separates groups of context lines that are not adjacent. When a
+     * file is searched ahead of the files before it, whether anything was printed before its
+     * first group is not yet known, so that separator is deferred to the writer of the output.
+     */
+    private static class GroupSeparator {
+        static final String SEPARATOR = "--";
+
+        private final boolean deferFirst;
+        boolean groupPrinted;
+        boolean deferred; // the first group was printed without a separator
+
+        GroupSeparator(boolean deferFirst) {
+            this.deferFirst = deferFirst;
+        }
+
+        void beforeGroup(PrintStream out) {
+            if (groupPrinted) {
+                out.println(SEPARATOR);
+            } else if (deferFirst) {
+                deferred = true;
+            }
+            groupPrinted = true;
+        }
+    }
 }
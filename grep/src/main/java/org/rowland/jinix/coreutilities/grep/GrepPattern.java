@@ -0,0 +1,161 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled grep pattern. Input lines are searched as raw bytes whenever the input encoding is
+ * ASCII compatible: patterns that are fixed strings are matched with a Boyer-Moore-Horspool
+ * search alone, and fixed length sequences of characters and ASCII classes are matched by a
+ * ByteClassPattern. Other patterns reject lines that do not contain a fixed string required by
+ * every match before the line is decoded for the regular expression engine. Regular expressions
+ * that describe a regular language are instead compiled to a ByteRegex and matched by a lazily
+ * built DFA, in time linear in the length of the line, when the engine is DFA, or when it is
+ * AUTO and java.util.regex may backtrack heavily on the pattern.
+ *
+ * A line matches a set of patterns, given with -e or -f, if it matches any of them. The fixed
+ * strings in a set are compiled into a single Aho-Corasick automaton; the other patterns of the
+ * set are tried one at a time.
+ *
+ * A GrepPattern may be shared between threads. Lines are matched by the LineMatcher returned
+ * from matcher(), which may only be used by one thread.
+ */
+class GrepPattern {
+
+    /**
+     * The engine used for patterns that are not fixed strings or class sequences. AUTO uses the
+     * DFA only for the patterns on which java.util.regex may backtrack heavily, since
+     * Matcher.find() is faster on the others.
+     */
+    enum Engine {
+        AUTO, DFA, REGEX
+    }
+
+    final Charset charset;
+    final boolean asciiCompatible;
+    final Pattern pattern; // null if the pattern is a fixed string searched as bytes
+    final LiteralSearcher literal; // null if the pattern has no usable fixed string
+    final ByteClassPattern classPattern; // null if the pattern is not a simple class sequence
+    final ByteRegex byteRegex; // null if lines are matched by the regular expression engine
+    final AhoCorasick literalSet; // the fixed strings of a pattern set, or null
+    final List<GrepPattern> alternatives; // the other patterns of a pattern set, or null
+
+    private GrepPattern(Charset charset, Pattern pattern, LiteralSearcher literal, ByteClassPattern classPattern,
+                        ByteRegex byteRegex) {
+        this.charset = charset;
+        this.asciiCompatible = isAsciiCompatible(charset);
+        this.pattern = pattern;
+        this.literal = literal;
+        this.classPattern = classPattern;
+        this.byteRegex = byteRegex;
+        this.literalSet = null;
+        this.alternatives = null;
+    }
+
+    private GrepPattern(Charset charset, AhoCorasick literalSet, List<GrepPattern> alternatives) {
+        this.charset = charset;
+        this.asciiCompatible = isAsciiCompatible(charset);
+        this.pattern = null;
+        this.literal = null;
+        this.classPattern = null;
+        this.byteRegex = null;
+        this.literalSet = literalSet;
+        this.alternatives = alternatives;
+    }
+
+    /**
+     * Compile a set of patterns that matches a line if any one of them does.
+     */
+    static GrepPattern compile(List<String> patternStrings, Charset charset, Engine engine) {
+        if (patternStrings.size() == 1) {
+            return compile(patternStrings.get(0), charset, engine);
+        }
+        List<byte[]> literals = new ArrayList<>();
+        List<GrepPattern> alternatives = new ArrayList<>();
+        for (String patternString : patternStrings) {
+            String literal = null;
+            if (isSearchableAsBytes(patternString, charset)) {
+                literal = PatternLiterals.literal(patternString);
+            }
+            if (literal != null) {
+                literals.add(literal.getBytes(charset));
+            } else {
+                alternatives.add(compile(patternString, charset, engine));
+            }
+        }
+        if (literals.size() == 1) {
+            // a single fixed string is searched faster on its own
+            alternatives.add(0, new GrepPattern(charset, null, new LiteralSearcher(literals.get(0)), null, null));
+            literals.clear();
+        }
+        return new GrepPattern(charset, (literals.isEmpty() ? null : new AhoCorasick(literals)), alternatives);
+    }
+
+    static GrepPattern compile(String patternString, Charset charset, Engine engine) {
+        if (!isSearchableAsBytes(patternString, charset)) {
+            return new GrepPattern(charset, Pattern.compile(patternString), null, null, null);
+        }
+        String literal = PatternLiterals.literal(patternString);
+        if (literal != null) {
+            return new GrepPattern(charset, null, new LiteralSearcher(literal.getBytes(charset)), null, null);
+        }
+        Pattern pattern = Pattern.compile(patternString);
+        literal = PatternLiterals.requiredLiteral(patternString);
+        ByteClassPattern classPattern = ByteClassPattern.compile(patternString, charset);
+        ByteRegex byteRegex = null;
+        if (classPattern == null && engine != Engine.REGEX) {
+            byteRegex = ByteRegex.compile(patternString, charset);
+            if (engine == Engine.AUTO && byteRegex != null && !byteRegex.backtracks) {
+                byteRegex = null;
+            }
+        }
+        return new GrepPattern(charset, pattern,
+                (literal != null ? new LiteralSearcher(literal.getBytes(charset)) : null),
+                classPattern, byteRegex);
+    }
+
+    /**
+     * Return true if any line is matched by the regular expression engine rather than by
+     * searching its bytes.
+     */
+    boolean needsRegexEngine() {
+        if (alternatives != null) {
+            for (GrepPattern alternative : alternatives) {
+                if (alternative.needsRegexEngine()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return pattern != null && classPattern == null && byteRegex == null;
+    }
+
+    LineMatcher matcher() {
+        return new LineMatcher(this);
+    }
+
+    /**
+     * Return true if the pattern may be searched for in the encoded bytes of a line. It can not
+     * be if it contains U+FFFD in UTF-8, since every malformed byte sequence of the line is
+     * decoded to that character without being its encoding.
+     */
+    private static boolean isSearchableAsBytes(String patternString, Charset charset) {
+        if (!isAsciiCompatible(charset) || !charset.newEncoder().canEncode(patternString)) {
+            return false;
+        }
+        return !charset.equals(StandardCharsets.UTF_8) || patternString.indexOf('\uFFFD') < 0;
+    }
+
+    /**
+     * Return true if the encoding represents ASCII characters as single bytes that never occur
+     * inside the encoding of any other character, so that a byte match is a character match.
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) ||
+                charset.equals(StandardCharsets.US_ASCII) ||
+                charset.equals(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,238 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Searches lines for a ByteRegex with a DFA that is built lazily from the NFA: each DFA state is
+ * the set of NFA states that some prefix of the line can reach, and a transition is computed the
+ * first time it is taken and then cached in a table. Every line after the first few therefore
+ * costs one table lookup per byte, and no line ever costs more than one NFA step per byte, so
+ * there is no pattern that can make a search backtrack.
+ *
+ * The cache is kept between lines. If it grows past MAX_STATES it is discarded and built again,
+ * which bounds its memory for patterns whose DFA would be exponentially large. A LazyDfa may only
+ * be used by one thread.
+ */
+class LazyDfa {
+
+    private static final int MAX_STATES = 2048;
+    private static final byte ACCEPT = 1; // the NFA has reached MATCH
+    private static final byte DEAD = 2; // no NFA state is left, so nothing can match
+    private static final byte ACCEPT_AT_END = 4; // MATCH is reached if the line ends here
+
+    private final ByteRegex regex;
+    private final int classCount;
+    private int[] delta; // delta[state * classCount + class] is the next state, or -1 if not computed
+    private byte[] flags;
+    private int[][] stateSets; // the NFA states of each DFA state, sorted
+    private final Map<StateKey, Integer> states = new HashMap<>();
+    private int stateCount;
+    private int initial;
+
+    // work space for computing closures
+    private final int[] stack;
+    private final int[] mark;
+    private int generation;
+    private final int[] closure;
+    private int closureSize;
+    private boolean closureAccepts;
+
+    LazyDfa(ByteRegex regex) {
+        this.regex = regex;
+        this.classCount = regex.classCount;
+        int n = regex.kind.length;
+        int edges = n;
+        for (int[] split : regex.splits) {
+            edges += (split != null ? split.length : 0);
+        }
+        this.stack = new int[edges];
+        this.mark = new int[n];
+        this.closure = new int[n];
+        reset();
+    }
+
+    /**
+     * Return true if the regular expression matches anywhere in b[from, to).
+     */
+    boolean find(byte[] b, int from, int to) {
+        int[] byteClass = regex.byteClass;
+        int s = initial;
+        if ((flags[s] & (ACCEPT | DEAD)) != 0) {
+            return (flags[s] & ACCEPT) != 0;
+        }
+        for (int i = from; i < to; i++) {
+            int c = byteClass[b[i] & 0xff];
+            int t = delta[s * classCount + c];
+            if (t < 0) {
+                t = transition(s, c);
+            }
+            s = t;
+            if ((flags[s] & (ACCEPT | DEAD)) != 0) {
+                return (flags[s] & ACCEPT) != 0;
+            }
+        }
+        return (flags[s] & ACCEPT_AT_END) != 0;
+    }
+
+    private void reset() {
+        delta = new int[classCount * 16];
+        Arrays.fill(delta, -1);
+        flags = new byte[16];
+        stateSets = new int[16][];
+        states.clear();
+        stateCount = 0;
+
+        beginClosure();
+        addClosure(regex.start, true, false);
+        initial = intern(true);
+    }
+
+    /**
+     * Compute the transition from state s on byte class c, adding the state it leads to.
+     */
+    private int transition(int s, int c) {
+        int b = regex.classByte[c];
+        int[] set = stateSets[s];
+        beginClosure();
+        for (int state : set) {
+            if (regex.kind[state] == ByteRegex.BYTES && regex.sets[regex.set[state]][b]) {
+                addClosure(regex.next[state], false, false);
+            }
+        }
+        addClosure(regex.start, false, false); // a match may start at any position
+        if (stateCount == MAX_STATES) {
+            int[] target = Arrays.copyOf(closure, closureSize);
+            boolean accepts = closureAccepts;
+            reset();
+            System.arraycopy(target, 0, closure, 0, target.length);
+            closureSize = target.length;
+            closureAccepts = accepts;
+            return intern(false);
+        }
+        int t = intern(false);
+        delta[s * classCount + c] = t;
+        return t;
+    }
+
+    private void beginClosure() {
+        generation++;
+        closureSize = 0;
+        closureAccepts = false;
+    }
+
+    /**
+     * Add the states reachable from state without consuming a byte to the closure. Only the
+     * states that consume a byte, or that wait for the end of the line, are kept.
+     */
+    private void addClosure(int state, boolean atBegin, boolean atEnd) {
+        int top = 0;
+        stack[top++] = state;
+        while (top > 0) {
+            int s = stack[--top];
+            if (mark[s] == generation) {
+                continue;
+            }
+            mark[s] = generation;
+            switch (regex.kind[s]) {
+                case ByteRegex.BYTES:
+                    closure[closureSize++] = s;
+                    break;
+                case ByteRegex.SPLIT:
+                    for (int split : regex.splits[s]) {
+                        if (mark[split] != generation) {
+                            stack[top++] = split;
+                        }
+                    }
+                    break;
+                case ByteRegex.BEGIN:
+                    if (atBegin) {
+                        stack[top++] = regex.next[s];
+                    }
+                    break;
+                case ByteRegex.END:
+                    if (atEnd) {
+                        stack[top++] = regex.next[s];
+                    } else {
+                        closure[closureSize++] = s;
+                    }
+                    break;
+                case ByteRegex.MATCH:
+                    closureAccepts = true;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Return the DFA state for the current closure, adding it if it is new.
+     */
+    private int intern(boolean atBegin) {
+        int[] set = Arrays.copyOf(closure, closureSize);
+        Arrays.sort(set);
+        StateKey key = new StateKey(set, closureAccepts, atBegin);
+        Integer existing = states.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        byte stateFlags = 0;
+        if (closureAccepts) {
+            stateFlags |= ACCEPT;
+        } else if (set.length == 0) {
+            stateFlags |= DEAD;
+        } else if (regex.anchorsEnd) {
+            beginClosure();
+            for (int state : set) {
+                if (regex.kind[state] == ByteRegex.END) {
+                    addClosure(state, atBegin, true);
+                }
+            }
+            if (closureAccepts) {
+                stateFlags |= ACCEPT_AT_END;
+            }
+        }
+
+        int s = stateCount++;
+        if (s == flags.length) {
+            flags = Arrays.copyOf(flags, s * 2);
+            stateSets = Arrays.copyOf(stateSets, s * 2);
+            int oldLength = delta.length;
+            delta = Arrays.copyOf(delta, oldLength * 2);
+            Arrays.fill(delta, oldLength, delta.length, -1);
+        }
+        flags[s] = stateFlags;
+        stateSets[s] = set;
+        states.put(key, s);
+        return s;
+    }
+
+    private static class StateKey {
+        final int[] set;
+        final boolean accepts;
+        final boolean atBegin; // the start of the line, where ^ may still match in ACCEPT_AT_END
+        final int hash;
+
+        StateKey(int[] set, boolean accepts, boolean atBegin) {
+            this.set = set;
+            this.accepts = accepts;
+            this.atBegin = atBegin;
+            this.hash = Arrays.hashCode(set) * 4 + (accepts ? 2 : 0) + (atBegin ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StateKey)) {
+                return false;
+            }
+            StateKey key = (StateKey) o;
+            return key.accepts == accepts && key.atBegin == atBegin && Arrays.equals(key.set, set);
+        }
+    }
+}
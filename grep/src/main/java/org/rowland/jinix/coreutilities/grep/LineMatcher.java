@@ -0,0 +1,106 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.regex.Matcher;
+
+/**
+ * Matches lines held as bytes against a GrepPattern. A line is only decoded when the regular
+ * expression engine has to examine it, and then into a reusable character buffer, so that no
+ * objects are allocated per line. A LineMatcher may only be used by one thread.
+ */
+class LineMatcher {
+
+    private final GrepPattern grepPattern;
+    private final LineMatcher[] alternatives; // matchers for the other patterns of a pattern set
+    private final Matcher matcher;
+    private final LazyDfa dfa;
+    private final CharsetDecoder decoder;
+    private CharBuffer chars = CharBuffer.allocate(1024);
+    private ByteBuffer bytes;
+
+    LineMatcher(GrepPattern grepPattern) {
+        this.grepPattern = grepPattern;
+        if (grepPattern.alternatives != null) {
+            alternatives = new LineMatcher[grepPattern.alternatives.size()];
+            for (int i = 0; i < alternatives.length; i++) {
+                alternatives[i] = grepPattern.alternatives.get(i).matcher();
+            }
+        } else {
+            alternatives = null;
+        }
+        this.matcher = (grepPattern.pattern != null ? grepPattern.pattern.matcher("") : null);
+        this.dfa = (grepPattern.byteRegex != null ? grepPattern.byteRegex.newDfa() : null);
+        this.decoder = grepPattern.charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Return true if the pattern matches anywhere in the line b[start, end).
+     */
+    boolean find(byte[] b, int start, int end) {
+        if (alternatives != null) {
+            if (grepPattern.literalSet != null && grepPattern.literalSet.find(b, start, end)) {
+                return true;
+            }
+            for (LineMatcher alternative : alternatives) {
+                if (alternative.find(b, start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (grepPattern.literal != null && grepPattern.literal.indexIn(b, start, end) < 0) {
+            return false;
+        }
+        if (matcher == null) {
+            return true;
+        }
+        if (grepPattern.classPattern != null && !grepPattern.classPattern.endsWithLineTerminator(b, start, end)) {
+            return grepPattern.classPattern.find(b, start, end);
+        }
+        if (dfa != null && !grepPattern.byteRegex.endsWithLineTerminator(b, start, end)) {
+            if (dfa.find(b, start, end)) {
+                return true;
+            }
+            if (!grepPattern.byteRegex.matchesMalformed(b, start, end)) {
+                return false;
+            }
+        }
+        return matcher.reset(decode(b, start, end)).find();
+    }
+
+    private CharBuffer decode(byte[] b, int start, int end) {
+        int length = end - start;
+        int capacity = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < capacity) {
+            chars = CharBuffer.allocate(Math.max(capacity, chars.capacity() * 2));
+        }
+        chars.clear();
+        if (grepPattern.asciiCompatible) {
+            int i = start;
+            char[] a = chars.array();
+            while (i < end && b[i] >= 0) {
+                a[i - start] = (char) b[i];
+                i++;
+            }
+            if (i == end) {
+                chars.limit(length);
+                return chars;
+            }
+        }
+
+        if (bytes == null || bytes.array() != b) {
+            bytes = ByteBuffer.wrap(b);
+        }
+        bytes.limit(end).position(start);
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+}
@@ -0,0 +1,179 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Splits an input stream into lines without decoding it. Input is read into a large buffer and
+ * each line is presented as a slice [lineStart(), lineEnd()) of buffer(); the slice does not
+ * include the line terminator. A slice is only valid until the next call to next(), unless the
+ * caller asks for the bytes of earlier lines to be retained with retain(). Retained lines are
+ * located by their offset in the stream, which offsetOf() and indexOf() convert to and from
+ * buffer indexes. Lines end with a newline or a carriage return and newline pair. The buffer
+ * grows to hold lines, or retained lines, that are longer than it.
+ */
+class LineScanner {
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos; // start of the data that has not been returned as a line
+    private int limit; // end of the data read into the buffer
+    private boolean eof;
+    private int lineStart;
+    private int lineEnd;
+    private long bufferOffset; // the stream offset of buf[0]
+    private long retainOffset = -1; // the stream offset of the first byte to keep, or -1
+
+    LineScanner(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Advance to the next line.
+     *
+     * @return false if there are no more lines
+     */
+    boolean next() throws IOException {
+        int scanned = pos;
+        while (true) {
+            int nl = indexOfNewline(buf, scanned, limit);
+            if (nl >= 0) {
+                setLine(pos, nl);
+                pos = nl + 1;
+                return true;
+            }
+            if (eof) {
+                if (pos < limit) {
+                    setLine(pos, limit);
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+            scanned = limit;
+            scanned -= fill(); // fill() moves the data back
+        }
+    }
+
+    /**
+     * Keep the bytes from the stream offset onwards in the buffer until retain() is called again.
+     * An offset of -1 releases the retained bytes.
+     */
+    void retain(long offset) {
+        retainOffset = offset;
+    }
+
+    /**
+     * Return the stream offset of the byte at index i of buffer().
+     */
+    long offsetOf(int i) {
+        return bufferOffset + i;
+    }
+
+    /**
+     * Return the index in buffer() of the retained byte at a stream offset.
+     */
+    int indexOf(long offset) {
+        return (int) (offset - bufferOffset);
+    }
+
+    /**
+     * Read up to length bytes ahead, without consuming them, and report whether they contain a
+     * NUL byte, which text files never do.
+     */
+    boolean isBinary(int length) throws IOException {
+        length = Math.min(length, buf.length);
+        while (!eof && limit - pos < length) {
+            fill();
+        }
+        for (int i = pos; i < Math.min(limit, pos + length); i++) {
+            if (buf[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int lineStart() {
+        return lineStart;
+    }
+
+    int lineEnd() {
+        return lineEnd;
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    /**
+     * Move the unreturned and retained data to the start of the buffer, growing the buffer if it
+     * is full, and read more input after it.
+     *
+     * @return the number of bytes the data was moved back by
+     */
+    private int fill() throws IOException {
+        int keep = pos;
+        if (retainOffset >= 0) {
+            keep = Math.min(keep, indexOf(retainOffset));
+        }
+        int remaining = limit - keep;
+        if (remaining == buf.length) {
+            byte[] newBuf = new byte[buf.length * 2];
+            System.arraycopy(buf, keep, newBuf, 0, remaining);
+            buf = newBuf;
+        } else if (keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, remaining);
+        }
+        bufferOffset += keep;
+        pos -= keep;
+        limit = remaining;
+        int br = in.read(buf, limit, buf.length - limit);
+        if (br < 0) {
+            eof = true;
+        } else {
+            limit += br;
+        }
+        return keep;
+    }
+
+    /**
+     * Find the first newline in b[from, to), testing 8 bytes at a time with the SWAR zero byte
+     * test. The lowest flagged byte of a word is always exact, so no verification is required.
+     */
+    private static int indexOfNewline(byte[] b, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = (long) LONG_VIEW.get(b, i) ^ NEWLINES;
+            long t = (x - LOW_BITS) & ~x & HIGH_BITS;
+            if (t != 0) {
+                return i + (Long.numberOfTrailingZeros(t) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (b[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,52 @@
+package org.rowland.jinix.coreutilities.grep;
+
+/**
+ * Boyer-Moore-Horspool search for a fixed sequence of bytes. When the input and the literal are
+ * in an ASCII compatible encoding such as UTF-8, a byte match is exactly a character match, so
+ * the input never has to be decoded.
+ */
+class LiteralSearcher {
+
+    private final byte[] literal;
+    private final int[] shift = new int[256];
+
+    LiteralSearcher(byte[] literal) {
+        this.literal = literal;
+        int last = literal.length - 1;
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = literal.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[literal[i] & 0xff] = last - i;
+        }
+    }
+
+    /**
+     * Return the index of the first occurrence of the literal in b[from, to), or -1 if there
+     * is none.
+     */
+    int indexIn(byte[] b, int from, int to) {
+        int n = literal.length;
+        if (n == 0) {
+            return from;
+        }
+        int last = n - 1;
+        byte lastByte = literal[last];
+        int end = to - n;
+        int i = from;
+        while (i <= end) {
+            byte c = b[i + last];
+            if (c == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && b[i + j] == literal[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[c & 0xff];
+        }
+        return -1;
+    }
+}
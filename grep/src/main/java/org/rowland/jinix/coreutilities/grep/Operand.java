@@ -0,0 +1,18 @@
+package org.rowland.jinix.coreutilities.grep;
+
+/**
+ * A file to be searched by grep, either named on the command line or found by a recursive
+ * search. An operand that could not be reached carries the error message to report in its place.
+ */
+class Operand {
+
+    final String name;
+    final boolean walked; // found by a recursive search; binary files are skipped
+    final String error; // null unless the operand could not be reached
+
+    Operand(String name, boolean walked, String error) {
+        this.name = name;
+        this.walked = walked;
+        this.error = error;
+    }
+}
@@ -0,0 +1,202 @@
+package org.rowland.jinix.coreutilities.grep;
+
+/**
+ * Finds fixed strings in a java.util.regex pattern that can be searched for without running the
+ * regular expression engine. The analysis is conservative: when a construct is not understood,
+ * no literal is reported and the pattern is always matched by the regular expression engine.
+ */
+class PatternLiterals {
+
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    private PatternLiterals() {
+    }
+
+    /**
+     * If the whole pattern matches only a fixed string, return that string. Otherwise return null.
+     */
+    static String literal(String pattern) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                int end = quoteEnd(pattern, i);
+                if (end > 0) {
+                    sb.append(pattern, i + 2, Math.min(end, pattern.length()));
+                    i = end + 2;
+                    continue;
+                }
+                if (i + 1 < pattern.length() && isEscapedLiteral(pattern.charAt(i + 1))) {
+                    sb.append(pattern.charAt(i + 1));
+                    i += 2;
+                    continue;
+                }
+                return null;
+            }
+            if (META_CHARACTERS.indexOf(c) >= 0) {
+                return null;
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the longest fixed string that every match of the pattern must contain, or null if
+     * no such string could be found. Only the top level sequence of the pattern is examined;
+     * groups, classes, quantified characters and escapes other than quoted characters end a run
+     * of literal characters.
+     */
+    static String requiredLiteral(String pattern) {
+        if (pattern.contains("(?")) {
+            return null; // inline flags such as (?i) change the meaning of the literals that follow
+        }
+        String best = null;
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                int end = quoteEnd(pattern, i);
+                if (end > 0) {
+                    int next = end + 2;
+                    if (depth == 0) {
+                        String quoted = pattern.substring(i + 2, Math.min(end, pattern.length()));
+                        if (isQuantifier(pattern, next) && !quoted.isEmpty()) {
+                            run.append(quoted, 0, quoted.length() - 1);
+                            best = endRun(run, best);
+                        } else {
+                            run.append(quoted);
+                        }
+                    }
+                    i = next;
+                    continue;
+                }
+                if (i + 1 >= pattern.length()) {
+                    return null;
+                }
+                char escaped = pattern.charAt(i + 1);
+                i += 2;
+                if (depth == 0 && isEscapedLiteral(escaped)) {
+                    best = appendLiteral(pattern, i, escaped, run, best);
+                } else {
+                    best = endRun(run, best);
+                }
+                continue;
+            }
+            switch (c) {
+                case '|':
+                    if (depth == 0) {
+                        return null;
+                    }
+                    break;
+                case '(':
+                    depth++;
+                    best = endRun(run, best);
+                    break;
+                case ')':
+                    depth--;
+                    break;
+                case '[':
+                    i = classEnd(pattern, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                    best = endRun(run, best);
+                    break;
+                case '{':
+                    i = pattern.indexOf('}', i);
+                    if (i < 0) {
+                        return null;
+                    }
+                    best = endRun(run, best);
+                    break;
+                case '^': case '$': case '.': case '?': case '*': case '+': case '}': case ']':
+                    best = endRun(run, best);
+                    break;
+                default:
+                    if (depth == 0) {
+                        best = appendLiteral(pattern, i + 1, c, run, best);
+                    }
+            }
+            i++;
+        }
+        return endRun(run, best);
+    }
+
+    /**
+     * Add the literal character c to the current run, taking account of any quantifier that
+     * follows it at index next. An optional character ends the run without being added; a
+     * repeated character is added and then ends the run.
+     */
+    private static String appendLiteral(String pattern, int next, char c, StringBuilder run, String best) {
+        if (!isQuantifier(pattern, next)) {
+            run.append(c);
+            return best;
+        }
+        char q = pattern.charAt(next);
+        if (q == '+' || (q == '{' && next + 1 < pattern.length() && pattern.charAt(next + 1) != '0')) {
+            run.append(c);
+        }
+        return endRun(run, best);
+    }
+
+    private static boolean isQuantifier(String pattern, int i) {
+        if (i >= pattern.length()) {
+            return false;
+        }
+        char q = pattern.charAt(i);
+        return q == '?' || q == '*' || q == '+' || q == '{';
+    }
+
+    private static String endRun(StringBuilder run, String best) {
+        if (run.length() > 0 && (best == null || run.length() > best.length())) {
+            best = run.toString();
+        }
+        run.setLength(0);
+        return best;
+    }
+
+    /**
+     * If a \Q quote starts at index i, return the index of the closing \E, or the pattern length
+     * if the quote is not closed. Otherwise return -1.
+     */
+    private static int quoteEnd(String pattern, int i) {
+        if (i + 1 < pattern.length() && pattern.charAt(i + 1) == 'Q') {
+            int end = pattern.indexOf("\\E", i + 2);
+            return (end < 0 ? pattern.length() : end);
+        }
+        return -1;
+    }
+
+    /**
+     * Return the index of the ] that closes the character class opening at index i, or -1 if the
+     * class could not be parsed with confidence.
+     */
+    private static int classEnd(String pattern, int i) {
+        if (pattern.startsWith("[]", i) || pattern.startsWith("[^]", i)) {
+            return -1;
+        }
+        int depth = 0;
+        for (; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                if (--depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isEscapedLiteral(char c) {
+        return !Character.isLetterOrDigit(c) && c < 0x80;
+    }
+}
@@ -0,0 +1,125 @@
+package org.rowland.jinix.coreutilities.grep;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the byte engines of LineMatcher with java.util.regex, which they stand in for.
+ */
+public class LineMatcherTest {
+
+    private static final String[] PATTERNS = {
+            "\\w$", "b$", "^$", "[a-c]$", "^b$", "\\d\\d$", "\\s$", "a\\r$", "b\\s*$", "(a|b)+$",
+            "^[a-c]+$", "x.*c$", "c\\z", "c\\Z", "ab", "^a"
+    };
+
+    private static final String[] LINES = {
+            "", "\r", " c\r", "b\r", "ab\r", "abc", "c\r\r", "a\r", "12\r", " \r", "b \r", "xbc\r",
+            "b\u0085", "b\u2028", "b\u2029", "\u2028", "c"
+    };
+
+    private static final String[] MALFORMED_PATTERNS = {
+            "(foo|x).baz", "a.b", "a[^c]b", "a\\Wb", "a\\Db", "a\\Sb", "a..b", "^.$", "^.*$", "a.*b",
+            "\uFFFD", "a\uFFFDb", "(a|\u00e9).", "[^a]+$"
+    };
+
+    // a lone byte, a cut-off sequence, a lone continuation byte, an overlong form, a surrogate
+    // and a code point above U+10FFFF, between and around ASCII characters
+    private static final byte[][] MALFORMED_LINES = {
+            bytes("foo", 0xe9, "baz"), bytes("a", 0xe9, "b"), bytes("a", 0xe2, 0x82, "b"),
+            bytes("a", 0x80, "b"), bytes("a", 0xc0, 0xaf, "b"), bytes("a", 0xed, 0xa0, 0x80, "b"),
+            bytes("a", 0xf4, 0x90, 0x80, 0x80, "b"), bytes("a", 0xf0, 0x9f, 0x98, "b"), bytes(0xe9),
+            bytes("a", 0xe2, 0x82), bytes("a", 0xef, 0xbf, 0xbd, "b"), bytes("a", 0xc3, 0xa9, 0x80, "b"),
+            bytes(0xe0, 0x80, "b"), bytes("a", 0xff, 0xfe, "b")
+    };
+
+    @Test
+    public void matchesLikeRegexOnLinesEndingInTerminators() {
+        for (GrepPattern.Engine engine : GrepPattern.Engine.values()) {
+            for (String pattern : PATTERNS) {
+                for (String line : LINES) {
+                    assertMatchesLikeRegex(pattern, line, engine);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesLikeRegexOnRandomLines() {
+        Random random = new Random(7);
+        String alphabet = "abc 1\r";
+        for (int n = 0; n < 20000; n++) {
+            StringBuilder line = new StringBuilder();
+            for (int i = random.nextInt(6); i > 0; i--) {
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            if (random.nextBoolean()) {
+                line.append('\r');
+            }
+            String pattern = PATTERNS[random.nextInt(PATTERNS.length)];
+            assertMatchesLikeRegex(pattern, line.toString(), GrepPattern.Engine.AUTO);
+        }
+    }
+
+    @Test
+    public void matchesLikeRegexOnMalformedUtf8() {
+        for (GrepPattern.Engine engine : GrepPattern.Engine.values()) {
+            for (String pattern : MALFORMED_PATTERNS) {
+                for (byte[] line : MALFORMED_LINES) {
+                    assertMatchesLikeRegex(pattern, line, engine);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesLikeRegexOnRandomBytes() {
+        Random random = new Random(11);
+        byte[] alphabet = bytes("ab", 0x80, 0xa9, 0xbf, 0xc3, 0xe2, 0xed, 0xf0, 0xff);
+        for (int n = 0; n < 20000; n++) {
+            byte[] line = new byte[random.nextInt(7)];
+            for (int i = 0; i < line.length; i++) {
+                line[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String pattern = MALFORMED_PATTERNS[random.nextInt(MALFORMED_PATTERNS.length)];
+            assertMatchesLikeRegex(pattern, line, GrepPattern.Engine.DFA);
+        }
+    }
+
+    private static void assertMatchesLikeRegex(String pattern, String line, GrepPattern.Engine engine) {
+        assertMatchesLikeRegex(pattern, line.getBytes(StandardCharsets.UTF_8), engine);
+    }
+
+    /**
+     * The line is decoded as LineMatcher does, replacing malformed input.
+     */
+    private static void assertMatchesLikeRegex(String pattern, byte[] b, GrepPattern.Engine engine) {
+        LineMatcher matcher = GrepPattern.compile(pattern, StandardCharsets.UTF_8, engine).matcher();
+        String line = new String(b, StandardCharsets.UTF_8);
+        boolean expected = Pattern.compile(pattern).matcher(line).find();
+        assertEquals("'" + pattern + "' on " + Arrays.toString(b) + " with " + engine,
+                expected, matcher.find(b, 0, b.length));
+    }
+
+    /**
+     * Concatenate strings, as ASCII, and bytes given as ints.
+     */
+    private static byte[] bytes(Object... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            if (part instanceof String) {
+                out.writeBytes(((String) part).getBytes(StandardCharsets.US_ASCII));
+            } else {
+                out.write((Integer) part);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,86 @@
+package org.rowland.jinix.coreutilities.gziputils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming decompression of gzip input for the utilities that read files, such as cat -z and
+ * grep -z. Input is decompressed as it is read, so no decompressed copy is ever written.
+ */
+public class GzipUtils {
+
+    static final int ID1 = 0x1f;
+    static final int ID2 = 0x8b;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Return true if the remaining bytes of the buffer start with the gzip magic number. The
+     * position of the buffer is not changed.
+     */
+    public static boolean isGzip(ByteBuffer head) {
+        return head.remaining() >= 2 &&
+                (head.get(head.position()) & 0xff) == ID1 && (head.get(head.position() + 1) & 0xff) == ID2;
+    }
+
+    /**
+     * Return a stream of the decompressed contents of in if it starts with the gzip magic
+     * number, or else a stream of in unchanged.
+     *
+     * @param threads the number of members of a multi-member file that may be inflated at once
+     */
+    public static InputStream decompressIfGzip(InputStream in, int threads) throws IOException {
+        PushbackInputStream pb = new PushbackInputStream(in, 2);
+        byte[] magic = new byte[2];
+        int n = 0;
+        int br;
+        while (n < 2 && (br = pb.read(magic, n, 2 - n)) > 0) {
+            n += br;
+        }
+        pb.unread(magic, 0, n);
+        if (n < 2 || !isGzip(ByteBuffer.wrap(magic))) {
+            return pb;
+        }
+        return decompress(pb, threads);
+    }
+
+    /**
+     * Return a stream of the decompressed contents of in, which must be gzip data of one or more
+     * members. With more than one thread, the members of the file are inflated in parallel by
+     * a ParallelGzipInputStream.
+     */
+    public static InputStream decompress(InputStream in, int threads) throws IOException {
+        if (threads > 1) {
+            return new ParallelGzipInputStream(in, threads);
+        }
+        return new GZIPInputStream(new LookaheadInputStream(in), BUFFER_SIZE);
+    }
+
+    /**
+     * Reports a non zero available() whenever more input follows, by reading one byte ahead if
+     * it must. GZIPInputStream only looks for another member after the first if available() is
+     * non zero, which a pipe, or a stream built from several, does not guarantee.
+     */
+    static class LookaheadInputStream extends PushbackInputStream {
+
+        LookaheadInputStream(InputStream in) {
+            super(in, 1);
+        }
+
+        @Override
+        public int available() throws IOException {
+            int n = super.available();
+            if (n > 0) {
+                return n;
+            }
+            int b = read();
+            if (b < 0) {
+                return 0;
+            }
+            unread(b);
+            return 1;
+        }
+    }
+}
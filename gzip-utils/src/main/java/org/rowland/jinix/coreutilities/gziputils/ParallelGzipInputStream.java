@@ -0,0 +1,324 @@
+package org.rowland.jinix.coreutilities.gziputils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a multi-member gzip stream, such as a log that was appended to in gzip blocks or
+ * a file written by a block compressor, by inflating several members at once on a pool of
+ * threads owned by the stream. Output is returned in order. The pool is shut down when the end
+ * of the stream is reached, when the rest of it is decompressed in sequence, and on close().
+ *
+ * Members are found by looking for the bytes of a gzip header, which may also occur by chance
+ * inside compressed data. A member is only accepted if it inflates to exactly the end of its
+ * bytes and its trailer's CRC-32 and length match. If any member is rejected, or a member grows
+ * beyond MAX_MEMBER_SIZE without another header being found, the rest of the stream is
+ * decompressed in sequence by a GZIPInputStream from the start of that member.
+ *
+ * A member is also rejected if it inflates to more than MAX_INFLATED_SIZE, so that a window of
+ * highly compressed members holds at most MAX_WINDOW * MAX_INFLATED_SIZE bytes, however many
+ * threads there are. Such a member, and the rest of the stream after it, is streamed in
+ * sequence with bounded memory instead.
+ */
+class ParallelGzipInputStream extends InputStream {
+
+    private static final int MAX_MEMBER_SIZE = 1024 * 1024;
+    private static final int MAX_INFLATED_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_WINDOW = 8;
+    private static final int CM_DEFLATE = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16, FRESERVED = 0xe0;
+    private static final int TRAILER_SIZE = 8;
+
+    private final InputStream in;
+    private final int window; // the number of members inflated ahead of the one being read
+    private final ExecutorService executor;
+    private final Deque<Member> pending = new ArrayDeque<>();
+    private byte[] data = new byte[2 * GzipUtils.BUFFER_SIZE]; // compressed data not yet submitted
+    private int dataStart; // the start of the next member
+    private int dataLimit;
+    private int scanned; // data before this index has been searched for a header
+    private boolean inEof;
+    private boolean oversize; // a member is larger than MAX_MEMBER_SIZE
+
+    private byte[] current; // the inflated member being read
+    private int currentPos;
+    private InputStream sequential; // the rest of the stream, once it is decompressed in sequence
+
+    /**
+     * @param threads the number of members that may be inflated at once
+     */
+    ParallelGzipInputStream(InputStream in, int threads) {
+        this.in = in;
+        this.window = Math.min(threads * 2, MAX_WINDOW);
+        this.executor = Executors.newFixedThreadPool(Math.min(threads, window), r -> {
+            Thread t = new Thread(r, "gzip-inflate");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (current != null && currentPos < current.length) {
+                int n = Math.min(len, current.length - currentPos);
+                System.arraycopy(current, currentPos, b, off, n);
+                currentPos += n;
+                return n;
+            }
+            if (sequential != null) {
+                return sequential.read(b, off, len);
+            }
+            submitMembers();
+            Member member = pending.poll();
+            if (member == null) {
+                if (oversize) {
+                    decompressSequentially(null);
+                    continue;
+                }
+                executor.shutdown();
+                return -1;
+            }
+            current = member.get();
+            currentPos = 0;
+            if (current == null) {
+                decompressSequentially(member);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Member member : pending) {
+            member.inflated.cancel(false);
+        }
+        pending.clear();
+        executor.shutdown();
+        if (sequential != null) {
+            sequential.close();
+        } else {
+            in.close();
+        }
+    }
+
+    /**
+     * Cut members from the compressed data and submit them to be inflated, until window members
+     * are pending or the input is exhausted.
+     */
+    private void submitMembers() throws IOException {
+        while (pending.size() < window && !oversize) {
+            int next = findHeader();
+            if (next >= 0) {
+                submit(dataStart, next);
+                dataStart = next;
+            } else if (inEof) {
+                if (dataLimit > dataStart) {
+                    submit(dataStart, dataLimit);
+                    dataStart = dataLimit;
+                }
+                return;
+            } else if (dataLimit - dataStart > MAX_MEMBER_SIZE) {
+                oversize = true;
+            } else {
+                readMore();
+            }
+        }
+    }
+
+    /**
+     * Return the index of the next possible member header after dataStart, or -1 if there is
+     * none in the data read so far.
+     */
+    private int findHeader() {
+        int i = Math.max(scanned, dataStart + 1);
+        int last = dataLimit - 4;
+        for (; i <= last; i++) {
+            if ((data[i] & 0xff) == GzipUtils.ID1 && (data[i + 1] & 0xff) == GzipUtils.ID2 &&
+                    data[i + 2] == CM_DEFLATE && (data[i + 3] & FRESERVED) == 0) {
+                scanned = i + 1;
+                return i;
+            }
+        }
+        scanned = Math.max(i, dataStart + 1);
+        return -1;
+    }
+
+    private void readMore() throws IOException {
+        if (dataStart > 0) {
+            System.arraycopy(data, dataStart, data, 0, dataLimit - dataStart);
+            dataLimit -= dataStart;
+            scanned -= dataStart;
+            dataStart = 0;
+        }
+        if (dataLimit == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        int br = in.read(data, dataLimit, data.length - dataLimit);
+        if (br < 0) {
+            inEof = true;
+        } else {
+            dataLimit += br;
+        }
+    }
+
+    private void submit(int from, int to) {
+        byte[] compressed = Arrays.copyOfRange(data, from, to);
+        pending.add(new Member(compressed, executor.submit(() -> inflate(compressed))));
+    }
+
+    /**
+     * Continue with a GZIPInputStream from the start of member, or from the unsubmitted data if
+     * member is null.
+     */
+    private void decompressSequentially(Member member) throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        if (member != null) {
+            streams.add(new ByteArrayInputStream(member.compressed));
+        }
+        for (Member later : pending) {
+            later.inflated.cancel(false);
+            streams.add(new ByteArrayInputStream(later.compressed));
+        }
+        pending.clear();
+        executor.shutdown();
+        streams.add(new ByteArrayInputStream(data, dataStart, dataLimit - dataStart));
+        streams.add(in);
+        current = null;
+        sequential = new GZIPInputStream(new GzipUtils.LookaheadInputStream(
+                new SequenceInputStream(Collections.enumeration(streams))), GzipUtils.BUFFER_SIZE);
+    }
+
+    /**
+     * Inflate one gzip member.
+     *
+     * @return the inflated data, or null if the bytes are not exactly one valid member or it
+     * inflates to more than MAX_INFLATED_SIZE
+     */
+    private static byte[] inflate(byte[] member) {
+        int pos = headerLength(member);
+        if (pos < 0) {
+            return null;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, pos, member.length - pos);
+            byte[] out = new byte[Math.min(Math.max(member.length * 4, 1024), MAX_INFLATED_SIZE)];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (out.length == MAX_INFLATED_SIZE) {
+                        return null; // streamed in sequence instead
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_INFLATED_SIZE));
+                }
+                int inflated = inflater.inflate(out, n, out.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null; // the member continues past the bytes it was given
+                }
+                n += inflated;
+            }
+            if (inflater.getRemaining() != TRAILER_SIZE) {
+                return null;
+            }
+            int trailer = member.length - TRAILER_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(out, 0, n);
+            if (crc.getValue() != readInt(member, trailer) || (n & 0xffffffffL) != readInt(member, trailer + 4)) {
+                return null;
+            }
+            return (n == out.length ? out : Arrays.copyOf(out, n));
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Return the length of the member's header, or -1 if it is not a valid gzip header.
+     */
+    private static int headerLength(byte[] b) {
+        if (b.length < 10 + TRAILER_SIZE || (b[0] & 0xff) != GzipUtils.ID1 || (b[1] & 0xff) != GzipUtils.ID2 ||
+                b[2] != CM_DEFLATE || (b[3] & FRESERVED) != 0) {
+            return -1;
+        }
+        int flags = b[3];
+        int pos = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (pos + 2 > b.length) {
+                return -1;
+            }
+            pos += 2 + ((b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipString(b, pos);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipString(b, pos);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        return (pos >= 0 && pos <= b.length - TRAILER_SIZE ? pos : -1);
+    }
+
+    private static int skipString(byte[] b, int pos) {
+        if (pos < 0) {
+            return -1;
+        }
+        while (pos < b.length && b[pos] != 0) {
+            pos++;
+        }
+        return (pos < b.length ? pos + 1 : -1);
+    }
+
+    private static long readInt(byte[] b, int i) {
+        return (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24;
+    }
+
+    private static class Member {
+        final byte[] compressed;
+        final Future<byte[]> inflated;
+
+        Member(byte[] compressed, Future<byte[]> inflated) {
+            this.compressed = compressed;
+            this.inflated = inflated;
+        }
+
+        byte[] get() throws IOException {
+            try {
+                return inflated.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
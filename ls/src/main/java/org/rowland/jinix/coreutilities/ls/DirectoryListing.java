@@ -0,0 +1,216 @@
+package org.rowland.jinix.coreutilities.ls;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The entries of a directory that match a glob, in the order ls lists them, with their attributes
+ * when the listing needs them. The directory is read once, and then the attributes of all of its
+ * entries are read together, on the common ForkJoinPool for a large directory: neither java.nio
+ * nor the Jinix file system return attributes with the entries of a directory, so each entry is a
+ * separate round trip to the file system, and the round trips are overlapped instead.
+ *
+ * The attributes are those of links themselves, not of what they link to, as GNU ls lists them.
+ * Entries whose attributes can not be read are left out, and the errors are kept with the
+ * listing, since it may be read on another thread while earlier output is still buffered.
+ *
+ * Entries are sorted by name, and then, for -S or -t, by a stable sort of their indexes on a
+ * long key, so the sort neither boxes its keys nor calls a Comparator.
+ */
+class DirectoryListing {
+
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    enum Order {NAME, SIZE, TIME}
+
+    private Path[] paths;
+    private BasicFileAttributes[] attrs; // null if the attributes were not read
+    private final List<String> errors = new ArrayList<>();
+
+    private DirectoryListing(Path[] paths, BasicFileAttributes[] attrs) {
+        this.paths = paths;
+        this.attrs = attrs;
+    }
+
+    /**
+     * Read the entries of dir that match glob, and their attributes if withAttributes is true or
+     * the order needs them, and sort them.
+     */
+    static DirectoryListing read(Path dir, String glob, boolean withAttributes, Order order, boolean reverse)
+            throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob)) {
+            for (Path path : ds) {
+                entries.add(path.getFileName().toString());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        String[] names = entries.toArray(new String[0]);
+        Arrays.sort(names);
+        Path[] paths = new Path[names.length];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = dir.resolve(names[i]);
+        }
+
+        DirectoryListing listing = new DirectoryListing(paths, null);
+        if (withAttributes || order != Order.NAME) {
+            listing.readAttributes();
+        }
+        if (order != Order.NAME) {
+            listing.sortByKey(order);
+        }
+        if (reverse) {
+            listing.reverse();
+        }
+        return listing;
+    }
+
+    /**
+     * Return the reason for an error reading a directory or its entries, without the file name
+     * that the message of a FileSystemException repeats.
+     */
+    static String reason(IOException e) {
+        if (e instanceof AccessDeniedException) {
+            return "Permission denied";
+        }
+        if (e instanceof NoSuchFileException) {
+            return "No such file or directory";
+        }
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null) {
+            return ((FileSystemException) e).getReason();
+        }
+        return e.getMessage();
+    }
+
+    int size() {
+        return paths.length;
+    }
+
+    Path path(int i) {
+        return paths[i];
+    }
+
+    /**
+     * Return the attributes of entry i, or null if they were not read. Entries whose attributes
+     * could not be read have been left out of the listing.
+     */
+    BasicFileAttributes attributes(int i) {
+        return (attrs != null ? attrs[i] : null);
+    }
+
+    /**
+     * Return the error messages for the entries whose attributes could not be read, in name
+     * order, to be written when the listing is.
+     */
+    List<String> errors() {
+        return errors;
+    }
+
+    private void readAttributes() {
+        BasicFileAttributes[] read = new BasicFileAttributes[paths.length];
+        String[] failed = new String[paths.length];
+        IntStream indexes = IntStream.range(0, paths.length);
+        if (paths.length >= PARALLEL_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+        indexes.forEach(i -> {
+            try {
+                read[i] = Files.getFileAttributeView(paths[i], BasicFileAttributeView.class,
+                        LinkOption.NOFOLLOW_LINKS).readAttributes();
+            } catch (NoSuchFileException e) {
+                // removed since the directory was read
+            } catch (IOException e) {
+                failed[i] = "ls: cannot access '" + paths[i].toString() + "': " + reason(e);
+            }
+        });
+
+        // drop the entries whose attributes could not be read
+        int n = 0;
+        for (int i = 0; i < paths.length; i++) {
+            if (read[i] != null) {
+                paths[n] = paths[i];
+                read[n++] = read[i];
+            } else if (failed[i] != null) {
+                errors.add(failed[i]);
+            }
+        }
+        paths = (n < paths.length ? Arrays.copyOf(paths, n) : paths);
+        attrs = (n < read.length ? Arrays.copyOf(read, n) : read);
+    }
+
+    /**
+     * Sort the entries, which are in name order, by size or modification time, largest or newest
+     * first. Entries with the same key stay in name order.
+     */
+    private void sortByKey(Order order) {
+        long[] key = new long[paths.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (order == Order.SIZE ? attrs[i].size() : attrs[i].lastModifiedTime().toMillis());
+        }
+        int[] sorted = new int[key.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        mergeSortDescending(sorted, new int[sorted.length], key, 0, sorted.length);
+
+        Path[] sortedPaths = new Path[paths.length];
+        BasicFileAttributes[] sortedAttrs = new BasicFileAttributes[attrs.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedPaths[i] = paths[sorted[i]];
+            sortedAttrs[i] = attrs[sorted[i]];
+        }
+        paths = sortedPaths;
+        attrs = sortedAttrs;
+    }
+
+    /**
+     * Stable merge sort of index[from, to) on key[index], largest first.
+     */
+    private static void mergeSortDescending(int[] index, int[] work, long[] key, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSortDescending(index, work, key, from, mid);
+        mergeSortDescending(index, work, key, mid, to);
+        if (key[index[mid - 1]] >= key[index[mid]]) {
+            return; // already in order
+        }
+        System.arraycopy(index, from, work, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && key[work[i]] >= key[work[j]])) {
+                index[k] = work[i++];
+            } else {
+                index[k] = work[j++];
+            }
+        }
+    }
+
+    private void reverse() {
+        for (int i = 0, j = paths.length - 1; i < j; i++, j--) {
+            Path p = paths[i];
+            paths[i] = paths[j];
+            paths[j] = p;
+            if (attrs != null) {
+                BasicFileAttributes a = attrs[i];
+                attrs[i] = attrs[j];
+                attrs[j] = a;
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.rowland.jinix.coreutilities.ls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DateFormatSymbols;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
+
+/**
+ * Writes the output of ls into a reusable byte buffer that is written out in large blocks, and
+ * formats the lines of ls -l into it directly. A long line is the same as
+ * String.format("%1$tb %1$td %1$tY  %1$tH:%1$tM:%1$tS %2$10d %3$s"), but digits are written into
+ * the buffer without a Formatter, a Calendar or a String. The date fields are cached: a time in
+ * the same second as the previous line reuses them all, a time on the same day reuses the month,
+ * day and year, and the offset of the time zone is cached until its next transition.
+ *
+ * Output is only written when the buffer fills and on flush(), so the caller flushes before
+ * anything else that must be seen in order, such as an error.
+ */
+class ListingWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    private static final long KB = 1024, MB = KB * 1024, GB = MB * 1024;
+
+    private final OutputStream out;
+    private final boolean humanReadable;
+    private final Charset charset = Charset.defaultCharset();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
+
+    private final byte[][] months = new byte[12][];
+    private final ZoneRules rules = ZoneId.systemDefault().getRules();
+    private long offsetFrom = 1, offsetTo = 0; // the times for which offsetSeconds is valid, none yet
+    private int offsetSeconds;
+    private long cachedDay = Long.MIN_VALUE;
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] date = new byte[64]; // "Mon dd yyyy  HH:MM:SS " for cachedSecond
+    private int timeStart; // the index of HH in date
+    private int dateLength;
+
+    /**
+     * @param humanReadable format sizes with a K, M or G unit, as ls -h
+     */
+    ListingWriter(OutputStream out, boolean humanReadable) {
+        this.out = out;
+        this.humanReadable = humanReadable;
+        String[] shortMonths = DateFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getShortMonths();
+        for (int i = 0; i < months.length; i++) {
+            months[i] = shortMonths[i].getBytes(charset);
+        }
+    }
+
+    /**
+     * Write the long format line of path, whose attributes are attr.
+     */
+    void printLong(Path path, BasicFileAttributes attr) throws IOException {
+        ensureSpace(date.length + 32);
+        appendDate(attr.lastModifiedTime().toMillis());
+        appendSize(attr.size());
+        buffer[length++] = ' ';
+        println(path.getFileName().toString());
+    }
+
+    /**
+     * Write s and a line separator.
+     */
+    void println(String s) throws IOException {
+        int n = s.length();
+        ensureSpace(n + 1);
+        if (n < buffer.length - length) {
+            // most names are ASCII, and those are copied without encoding them
+            int start = length;
+            int i = 0;
+            while (i < n) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                buffer[start + i++] = (byte) c;
+            }
+            if (i == n) {
+                length += n;
+                buffer[length++] = '\n';
+                return;
+            }
+        }
+        byte[] encoded = s.getBytes(charset);
+        if (encoded.length < buffer.length - length) {
+            System.arraycopy(encoded, 0, buffer, length, encoded.length);
+            length += encoded.length;
+        } else {
+            flushBuffer();
+            out.write(encoded);
+        }
+        ensureSpace(1);
+        buffer[length++] = '\n';
+    }
+
+    void println() throws IOException {
+        ensureSpace(1);
+        buffer[length++] = '\n';
+    }
+
+    /**
+     * Write out everything buffered, and flush the stream.
+     */
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void ensureSpace(int n) throws IOException {
+        if (buffer.length - length < n) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (length > 0) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    private void appendDate(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            formatDate(second);
+        }
+        System.arraycopy(date, 0, buffer, length, dateLength);
+        length += dateLength;
+    }
+
+    /**
+     * Set date to the local time of second, reusing the fields of the day before it if they
+     * have not changed.
+     */
+    private void formatDate(long second) {
+        if (second < offsetFrom || second >= offsetTo) {
+            Instant instant = Instant.ofEpochSecond(second);
+            offsetSeconds = rules.getOffset(instant).getTotalSeconds();
+            ZoneOffsetTransition previous = rules.previousTransition(Instant.ofEpochSecond(second + 1));
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            offsetFrom = (previous != null ? previous.toEpochSecond() : Long.MIN_VALUE);
+            offsetTo = (next != null ? next.toEpochSecond() : Long.MAX_VALUE);
+        }
+        long local = second + offsetSeconds;
+        long day = Math.floorDiv(local, SECONDS_PER_DAY);
+        if (day != cachedDay) {
+            LocalDate localDate = LocalDate.ofEpochDay(day);
+            byte[] month = months[localDate.getMonthValue() - 1];
+            int i = 0;
+            System.arraycopy(month, 0, date, i, month.length);
+            i += month.length;
+            date[i++] = ' ';
+            i = putDigits(date, i, localDate.getDayOfMonth(), 2);
+            date[i++] = ' ';
+            i = putDigits(date, i, localDate.getYear(), 4);
+            date[i++] = ' ';
+            date[i++] = ' ';
+            timeStart = i;
+            dateLength = i + 9;
+            date[i + 2] = ':';
+            date[i + 5] = ':';
+            date[i + 8] = ' ';
+            cachedDay = day;
+        }
+        int secondOfDay = Math.floorMod(local, SECONDS_PER_DAY);
+        putDigits(date, timeStart, secondOfDay / 3600, 2);
+        putDigits(date, timeStart + 3, (secondOfDay / 60) % 60, 2);
+        putDigits(date, timeStart + 6, secondOfDay % 60, 2);
+        cachedSecond = second;
+    }
+
+    /**
+     * Write the size right aligned in 10 columns, or for -h, with two decimals rounded half up
+     * in 9 columns and a unit.
+     */
+    private void appendSize(long size) {
+        long unit = (size >= GB ? GB : size >= MB ? MB : size >= KB ? KB : 1);
+        if (!humanReadable || unit == 1) {
+            appendRightAligned(size, 0, 10);
+            return;
+        }
+        long hundredths = (size <= Long.MAX_VALUE / 100 ? (size * 100 + unit / 2) / unit :
+                Math.round(size / (double) unit * 100));
+        appendRightAligned(hundredths / 100, hundredths % 100, 9);
+        buffer[length++] = (byte) (unit == GB ? 'G' : unit == MB ? 'M' : 'K');
+    }
+
+    /**
+     * Write whole, followed by two decimals if the width is 9, right aligned in width columns.
+     */
+    private void appendRightAligned(long whole, long hundredths, int width) {
+        int digits = 1;
+        for (long n = whole; n >= 10; n /= 10) {
+            digits++;
+        }
+        int chars = (width == 9 ? digits + 3 : digits);
+        for (int i = chars; i < width; i++) {
+            buffer[length++] = ' ';
+        }
+        int end = length + digits;
+        for (int i = end - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        }
+        length = end;
+        if (width == 9) {
+            buffer[length++] = '.';
+            length = putDigits(buffer, length, (int) hundredths, 2);
+        }
+    }
+
+    /**
+     * Put n, which is not negative, at b[i] with at least width digits.
+     *
+     * @return the index after the last digit
+     */
+    private static int putDigits(byte[] b, int i, int n, int width) {
+        int digits = 1;
+        for (int m = n; m >= 10; m /= 10) {
+            digits++;
+        }
+        int end = i + Math.max(digits, width);
+        for (int j = end - 1; j >= i; j--) {
+            b[j] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        return end;
+    }
+}
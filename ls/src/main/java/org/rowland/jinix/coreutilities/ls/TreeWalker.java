@@ -0,0 +1,135 @@
+package org.rowland.jinix.coreutilities.ls;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Walks the directories below a listing for ls -R, depth first in listing order, printing each
+ * directory as soon as its listing is read. While one directory is printed, the listings of the
+ * next PREFETCH subdirectories of each open level are read ahead on a small pool, so printing
+ * rarely waits for the file system.
+ *
+ * Only the subdirectory paths of the open levels are kept, and at most PREFETCH listings per open
+ * level, so memory grows with the depth of the tree and the size of its largest directories, but
+ * never with the size of a subtree.
+ */
+class TreeWalker {
+
+    private static final int THREADS = 4;
+    private static final int PREFETCH = 8;
+
+    interface Lister {
+        DirectoryListing list(Path dir) throws IOException;
+    }
+
+    interface Printer {
+        void print(Path dir, DirectoryListing listing);
+    }
+
+    private final ForkJoinPool pool = new ForkJoinPool(THREADS);
+    private final Lister lister;
+    private final Printer printer;
+
+    TreeWalker(Lister lister, Printer printer) {
+        this.lister = lister;
+        this.printer = printer;
+    }
+
+    /**
+     * List every directory below the directories of listing, which has been printed. The
+     * listing must have attributes.
+     */
+    void walkBelow(DirectoryListing listing) {
+        Deque<Level> levels = new ArrayDeque<>();
+        levels.push(new Level(subdirectories(listing)));
+        while (!levels.isEmpty()) {
+            Level level = levels.peek();
+            if (!level.hasNext()) {
+                levels.pop();
+                continue;
+            }
+            Path dir = level.nextDirectory();
+            DirectoryListing subListing = level.nextListing(dir);
+            if (subListing != null) {
+                printer.print(dir, subListing);
+                levels.push(new Level(subdirectories(subListing)));
+            }
+        }
+    }
+
+    /**
+     * Return the directories of a listing. Its attributes are those of links, so links to
+     * directories are not followed.
+     */
+    private static List<Path> subdirectories(DirectoryListing listing) {
+        List<Path> dirs = new ArrayList<>();
+        for (int i = 0; i < listing.size(); i++) {
+            if (listing.attributes(i).isDirectory()) {
+                dirs.add(listing.path(i));
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * The subdirectories of one open directory, with the listings of the next few read ahead.
+     */
+    private class Level {
+        private final List<Path> dirs;
+        private int next; // the next directory to print
+        private int submitted; // the listings of dirs before this index have been submitted
+        private final Deque<Future<DirectoryListing>> prefetched = new ArrayDeque<>();
+
+        Level(List<Path> dirs) {
+            this.dirs = dirs;
+            prefetch();
+        }
+
+        boolean hasNext() {
+            return next < dirs.size();
+        }
+
+        Path nextDirectory() {
+            return dirs.get(next++);
+        }
+
+        /**
+         * Return the listing of dir, the directory just returned by nextDirectory(), or null if it
+         * could not be read, which has been reported.
+         */
+        DirectoryListing nextListing(Path dir) {
+            Future<DirectoryListing> listing = prefetched.poll();
+            prefetch();
+            try {
+                return listing.get();
+            } catch (ExecutionException e) {
+                printer.print(dir, null);
+                // the pool wraps the IOException of the lister in a RuntimeException
+                Throwable cause = e.getCause();
+                while (!(cause instanceof IOException) && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                String reason = (cause instanceof IOException ? DirectoryListing.reason((IOException) cause) :
+                        cause.getMessage());
+                System.err.println("ls: cannot open directory '" + dir.toString() + "': " + reason);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+        private void prefetch() {
+            while (submitted < dirs.size() && prefetched.size() < PREFETCH) {
+                Path dir = dirs.get(submitted++);
+                prefetched.add(pool.submit(() -> lister.list(dir)));
+            }
+        }
+    }
+}
@@ -11,7 +11,6 @@ import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
-import java.util.function.Consumer;
 
 import static org.rowland.jinix.coreutilities.globutils.GlobUtils.parseGlob;
 
@@ -23,11 +22,9 @@ import static org.rowland.jinix.coreutilities.globutils.GlobUtils.parseGlob;
  */
 public class ls {
 
-    private static double GB = (1024 * 1024 * 1024);
-    private static double MB = (1024 * 1024);
-    private static double KB = 1024;
-
+    private static ListingWriter out; // all of the output, written in large blocks
     private static boolean displayedFile; // this flag is set to false for every argument
+    private static TreeWalker treeWalker; // lists the directories below a directory for -R
 
     public static void main(String[] args) {
 
@@ -35,10 +32,11 @@ public class ls {
         if (cmdLine == null) return;
 
         args = cmdLine.getArgs();
+        out = new ListingWriter(System.out, cmdLine.hasOption("h"));
 
         if (args.length == 0) {
             args = new String[1];
-            args[0] = "*";
+            args[0] = (cmdLine.hasOption("R") ? "." : "*"); // -R names the directory in its headers
         }
 
         argLoop:
@@ -49,11 +47,12 @@ public class ls {
                 try {
                     pgr = parseGlob(Paths.get(arg));
                 } catch (InvalidGlobException e) {
+                    flush();
                     System.err.println("ls: "+e.getMessage()+": " + arg);
                     continue argLoop;
                 }
                 if (pgr.isGlob) {
-                    displayDirectory(pgr.dir, pgr.fileName, cmdLine);
+                    displayDirectory(pgr.dir, pgr.fileName, false, cmdLine);
                 } else {
                     Path p = Paths.get(arg);
                     if (Files.isDirectory(p)) {
@@ -61,7 +60,7 @@ public class ls {
                             displayFile(p, cmdLine);
                         } else {
                             pgr.isGlob = true; // indicates that we listing the full directory
-                            displayDirectory(p, "*", cmdLine);
+                            displayDirectory(p, "*", cmdLine.hasOption("R"), cmdLine);
                         }
                     } else {
                         if (Files.exists(p)) {
@@ -73,67 +72,109 @@ public class ls {
                 }
 
                 if (!displayedFile && !pgr.isGlob) {
+                    flush();
                     System.err.println("ls: cannot access '"+arg+"': No such file or directory");
                 }
 
             } catch (NoSuchFileException e) {
+                flush();
                 System.err.println("ls: cannot access '" + arg + "': No such file or directory");
                 continue;
             } catch (IOException e) {
 
             }
         }
-        System.out.flush();
+        flush();
     }
 
-    private static void displayDirectory(final Path dir, String glob, CommandLine cmdLine) throws IOException {
-        DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob);
-        ds.forEach(new Consumer<Path>() {
-            @Override
-            public void accept(Path path) {
-                try {
-                    displayFile(dir.resolve(path), cmdLine);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+    /**
+     * Write out the buffered output, before an error or while a tree is listed.
+     */
+    private static void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // the output is gone, and so is anywhere to report it
+        }
     }
 
-    private static void displayFile(Path fileName, CommandLine cmdLine) throws IOException {
-        displayedFile = true;
-        if (cmdLine.hasOption("l")) {
-            displayFileLong(fileName, cmdLine);
-        } else {
-            displayFileShort(fileName);
+    /**
+     * List the entries of dir that match glob, after a "dir:" header if header is true, and with
+     * -R, every directory below them.
+     */
+    private static void displayDirectory(final Path dir, String glob, boolean header, CommandLine cmdLine)
+            throws IOException {
+        DirectoryListing listing = readDirectory(dir, glob, cmdLine);
+        if (header) {
+            out.println(dir.toString() + ":");
+        }
+        displayListing(listing, cmdLine);
+        if (cmdLine.hasOption("R")) {
+            if (treeWalker == null) {
+                treeWalker = new TreeWalker(
+                        subdir -> readDirectory(subdir, "*", cmdLine),
+                        (subdir, subListing) -> {
+                            try {
+                                out.println();
+                                out.println(subdir.toString() + ":");
+                                if (subListing != null) {
+                                    displayListing(subListing, cmdLine);
+                                }
+                            } catch (IOException e) {
+                                // reported with the error of the next write
+                            }
+                            flush(); // a directory at a time, before any error about it
+                        });
+            }
+            flush();
+            treeWalker.walkBelow(listing);
         }
     }
 
-    private static void displayFileShort(Path fileName) {
-        System.out.println(fileName.getFileName().toString());
+    private static DirectoryListing readDirectory(Path dir, String glob, CommandLine cmdLine) throws IOException {
+        DirectoryListing.Order order = DirectoryListing.Order.NAME;
+        if (cmdLine.hasOption("S")) {
+            order = DirectoryListing.Order.SIZE;
+        } else if (cmdLine.hasOption("t")) {
+            order = DirectoryListing.Order.TIME;
+        }
+        boolean withAttributes = cmdLine.hasOption("l") || cmdLine.hasOption("R");
+        return DirectoryListing.read(dir, glob, withAttributes, order, cmdLine.hasOption("r"));
     }
 
-    private static void displayFileLong(Path path, CommandLine cmdList) throws IOException {
-
-        BasicFileAttributes attr = Files.getFileAttributeView(path, BasicFileAttributeView.class).readAttributes();
-
-        String fileLength;
-        if (cmdList.hasOption('h')) {
-            double fl = (double) attr.size();
-            if (fl >= GB) {
-                fileLength = String.format("%1$9.2f", (fl/GB)) + "G";
-            } else if (fl >= MB) {
-                fileLength = String.format("%1$9.2f", (fl/MB)) + "M";
-            } else if (fl >= KB) {
-                fileLength = String.format("%1$9.2f", (fl/KB)) + "K";
+    /**
+     * Write the entries of a listing, after the errors reading it, which follow all of the
+     * output before them.
+     */
+    private static void displayListing(DirectoryListing listing, CommandLine cmdLine) throws IOException {
+        if (!listing.errors().isEmpty()) {
+            flush();
+            for (String error : listing.errors()) {
+                System.err.println(error);
+            }
+        }
+        boolean longFormat = cmdLine.hasOption("l");
+        for (int i = 0; i < listing.size(); i++) {
+            displayedFile = true;
+            if (longFormat) {
+                out.printLong(listing.path(i), listing.attributes(i));
             } else {
-                fileLength = String.format("%1$10d", attr.size());
+                displayFileShort(listing.path(i));
             }
+        }
+    }
+
+    private static void displayFile(Path fileName, CommandLine cmdLine) throws IOException {
+        displayedFile = true;
+        if (cmdLine.hasOption("l")) {
+            out.printLong(fileName, Files.getFileAttributeView(fileName, BasicFileAttributeView.class).readAttributes());
         } else {
-            fileLength = String.format("%1$10d", attr.size());
+            displayFileShort(fileName);
         }
-        System.out.println(String.format("%1$tb %1$td %1$tY  %1$tH:%1$tM:%1$tS ", attr.lastModifiedTime().toMillis()) +
-                fileLength + " " + path.getFileName().toString());
+    }
+
+    private static void displayFileShort(Path fileName) throws IOException {
+        out.println(fileName.getFileName().toString());
     }
 
     private static CommandLine parseCommandLineOptions(String[] args) {
@@ -145,6 +186,10 @@ public class ls {
         options.addOption("l", null, false, "use a long listing format");
         options.addOption("h", "human-readable", false, "print sizes in human readable format (e.g., 1K 234M 2G)");
         options.addOption("d", "directory", false, "list directories themselves, not their contents");
+        options.addOption("S", null, false, "sort by file size, largest first");
+        options.addOption("t", null, false, "sort by modification time, newest first");
+        options.addOption("r", "reverse", false, "reverse order while sorting");
+        options.addOption("R", "recursive", false, "list subdirectories recursively");
 
         try {
             CommandLine cmdLine = parser.parse(options, args);
@@ -1,12 +1,19 @@
 package org.rowland.jinix.coreutilities.mv;
 
 import org.apache.commons.cli.*;
+import org.rowland.jinix.coreutilities.copyutils.CopyProgress;
+import org.rowland.jinix.coreutilities.copyutils.FileCopier;
+import org.rowland.jinix.coreutilities.copyutils.ParallelCopier;
 import org.rowland.jinix.coreutilities.globutils.InvalidGlobException;
 import org.rowland.jinix.coreutilities.globutils.ParseGlobResult;
 
 import java.io.*;
 import java.nio.file.*;
-import java.util.function.Consumer;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static org.rowland.jinix.coreutilities.globutils.GlobUtils.isGlob;
 import static org.rowland.jinix.coreutilities.globutils.GlobUtils.parseGlob;
@@ -22,6 +29,11 @@ import static org.rowland.jinix.coreutilities.globutils.GlobUtils.parseGlob;
  */
 public class mv {
 
+    private static final CopyProgress progress = new CopyProgress("moved");
+    private static boolean reportProgress;
+    private static int jobs;
+    private static ParallelCopier copier; // renames globs and moves trees between file systems, once needed
+
     public static void main(String[] args) {
         CommandLine cmdLine = parseCommandLineOptions(args);
         if (cmdLine == null) return;
@@ -33,8 +45,29 @@ public class mv {
             return;
         }
 
+        jobs = Runtime.getRuntime().availableProcessors();
+        if (cmdLine.hasOption("jobs")) {
+            try {
+                jobs = Integer.parseInt(cmdLine.getOptionValue("jobs"));
+                if (jobs < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("mv: invalid number of jobs: "+cmdLine.getOptionValue("jobs"));
+                return;
+            }
+        }
+
         Path dest = null;
         try {
+            if (cmdLine.hasOption("progress")) {
+                for (int i=0; i<(args.length-1); i++) {
+                    expectSource(Paths.get(args[i]));
+                }
+                reportProgress = true;
+                progress.startReporter(System.err);
+            }
+
             if (args.length == 2) {
                 Path src = Paths.get(args[0]);
                 dest = Paths.get(args[1]);
@@ -57,6 +90,11 @@ public class mv {
             System.err.println("mv: target '"+dest.toString()+"': is not a directory");
         } catch (IOException e) {
             throw new RuntimeException("IOException moving file",e);
+        } finally {
+            if (copier != null) {
+                copier.finish();
+            }
+            progress.stopReporter();
         }
     }
 
@@ -67,18 +105,7 @@ public class mv {
                 return;
             }
             try {
-                ParseGlobResult pgr = parseGlob(src);
-                DirectoryStream<Path> ds = Files.newDirectoryStream(pgr.dir, pgr.fileName);
-                ds.forEach(new Consumer<Path>() {
-                    @Override
-                    public void accept(Path path) {
-                        try {
-                            moveFileInner(path, dest.resolve(path.getFileName()), cmdLine);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                });
+                moveGlob(parseGlob(src), dest, cmdLine);
             } catch (InvalidGlobException e) {
                 System.err.println("mv: "+e.getMessage());
                 return;
@@ -88,77 +115,352 @@ public class mv {
         }
     }
 
-    private static void moveFileInner(Path src, Path dest, CommandLine cmdLine) throws IOException {
-        try {
-            if (Files.isDirectory(dest)) {
-                if (cmdLine.hasOption('n')) {
+    /**
+     * Move the files that match a glob into the directory dest. dest has been checked once, so
+     * each file is renamed to its name in dest without looking at dest again, and the renames
+     * run concurrently on the ParallelCopier, which hides the round trip of each one to the file
+     * server. Files that can not be renamed, because dest is on another file system, are moved
+     * afterwards one at a time.
+     */
+    private static void moveGlob(ParseGlobResult pgr, Path dest, CommandLine cmdLine) throws IOException {
+        Queue<Path> notRenamed = new ConcurrentLinkedQueue<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(pgr.dir, pgr.fileName)) {
+            for (Path path : ds) {
+                Path target = dest.resolve(path.getFileName());
+                copier().submit(() -> {
                     try {
-                        Files.move(src, dest.resolve(src.getFileName()));
-                    } catch (FileAlreadyExistsException e) {
-                        System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
-                    } catch (UnsupportedOperationException e) {
-                        moveFile(src, dest.resolve(src.getFileName()), false);
+                        if (!tryRename(path, target, cmdLine)) {
+                            notRenamed.add(path);
+                        }
+                    } catch (NoSuchFileException e) {
+                        System.err.println("mv: cannot move '" + path.toString() + "': No such file or directory");
+                    } catch (IOException e) {
+                        reportFailure(path, target, e);
                     }
-                } else {
-                    try {
-                        Files.move(src, dest.resolve(src.getFileName()), StandardCopyOption.REPLACE_EXISTING);
-                    } catch (UnsupportedOperationException e) {
-                        moveFile(src, dest.resolve(src.getFileName()), true);
+                });
+            }
+        }
+        copier().await();
+        for (Path path : notRenamed) {
+            moveFileInner(path, dest, cmdLine);
+        }
+    }
+
+    private static void moveFileInner(Path src, Path dest, CommandLine cmdLine) throws IOException {
+        Path target = (Files.isDirectory(dest) ? dest.resolve(src.getFileName()) : dest);
+        try {
+            if (tryRename(src, target, cmdLine)) {
+                return;
+            }
+            BasicFileAttributes attr = Files.getFileAttributeView(src, BasicFileAttributeView.class,
+                    LinkOption.NOFOLLOW_LINKS).readAttributes();
+            if (attr.isDirectory()) {
+                moveTree(src, target, cmdLine);
+            } else if (moveAcross(src, target, attr, !cmdLine.hasOption('n'))) {
+                moved(src, target, cmdLine);
+            }
+        } catch (NoSuchFileException e) {
+            System.err.println("mv: cannot move '" + src.toString() + "': No such file or directory");
+        } catch (DirectoryNotEmptyException e) {
+            System.err.println("mv: cannot move '" + src.toString() + "': Directory not empty");
+        } catch (FileSystemException e) {
+            reportFailure(src, target, e);
+        }
+    }
+
+    /**
+     * Report that src could not be moved to target, giving the reason of a FileSystemException
+     * rather than its message, which repeats the file names.
+     */
+    private static void reportFailure(Path src, Path target, IOException e) {
+        String reason = e.getMessage();
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null) {
+            reason = ((FileSystemException) e).getReason();
+        } else if (e instanceof AccessDeniedException) {
+            reason = "Permission denied";
+        } else if (e instanceof FileAlreadyExistsException) {
+            reason = "File already exists";
+        }
+        System.err.println("mv: cannot move '" + src.toString() + "' to '" + target.toString() + "': " + reason);
+    }
+
+    /**
+     * Move src to target by renaming it, unless -n is given and target exists, which is reported.
+     *
+     * @return false if src must be copied instead, as for rename()
+     */
+    private static boolean tryRename(Path src, Path target, CommandLine cmdLine) throws IOException {
+        boolean replace = !cmdLine.hasOption('n');
+        long size = (reportProgress ? CopyProgress.sizeOf(src, true) : 0);
+        try {
+            if (!rename(src, target, replace)) {
+                return false;
+            }
+        } catch (FileAlreadyExistsException e) {
+            System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
+            return true;
+        }
+        progress.copied(size);
+        moved(src, target, cmdLine);
+        return true;
+    }
+
+    private static ParallelCopier copier() {
+        if (copier == null) {
+            copier = new ParallelCopier(jobs);
+        }
+        return copier;
+    }
+
+    private static void moved(Path src, Path dest, CommandLine cmdLine) {
+        progress.fileDone();
+        if (cmdLine.hasOption('v')) {
+            System.out.println("renamed '" + src.toString() + "' -> '" + dest.toString() + "'");
+        }
+    }
+
+    /**
+     * Rename src to target, atomically if the file system can. An atomic move replaces an
+     * existing target, so when target must not be replaced the move is made without
+     * REPLACE_EXISTING, and a target that exists fails it with FileAlreadyExistsException. Such a
+     * move copies a file to another file system itself, but not a directory that is not empty.
+     *
+     * @return false if src and target are on different file systems, or the file system can not
+     * move files, so src must be copied instead
+     */
+    private static boolean rename(Path src, Path target, boolean replace) throws IOException {
+        if (!replace) {
+            try {
+                Files.move(src, target);
+                return true;
+            } catch (DirectoryNotEmptyException | UnsupportedOperationException e) {
+                return false;
+            }
+        }
+        try {
+            Files.move(src, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (AtomicMoveNotSupportedException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            // try a move that need not be atomic
+        }
+        try {
+            Files.move(src, target, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Move a directory to another file system. The directories of the tree are created in order
+     * and its files are moved by the ParallelCopier, each one copied, compared with its copy and
+     * then deleted. The emptied directories are deleted last, so any directory that still holds a
+     * file that could not be moved is kept. As with a rename, an existing target is only replaced
+     * if it is an empty directory and -n is not given.
+     */
+    private static void moveTree(Path src, Path target, CommandLine cmdLine) throws IOException {
+        if (target.toAbsolutePath().normalize().startsWith(src.toAbsolutePath().normalize())) {
+            System.err.println("mv: cannot move '" + src.toString() + "' to a subdirectory of itself, '" +
+                    target.toString() + "'");
+            return;
+        }
+        boolean replace = !cmdLine.hasOption('n');
+        if (!createTarget(src, target, replace)) {
+            return;
+        }
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Path targetDir = resolve(dir);
+                if (dir.equals(src)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                try {
+                    Files.createDirectory(targetDir);
+                } catch (FileAlreadyExistsException e) {
+                    if (!Files.isDirectory(targetDir)) {
+                        System.err.println("mv: cannot overwrite non-directory '" + targetDir.toString() +
+                                "' with directory '" + dir.toString() + "'");
+                        return FileVisitResult.SKIP_SUBTREE;
                     }
+                } catch (IOException e) {
+                    System.err.println("mv: cannot create directory '" + targetDir.toString() + "': " + e.getMessage());
+                    return FileVisitResult.SKIP_SUBTREE;
                 }
-            } else {
-                if (cmdLine.hasOption('n')) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path targetFile = resolve(file);
+                copier().submit(() -> {
                     try {
-                        Files.move(src, dest);
-                    } catch (FileAlreadyExistsException e) {
-                        System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
-                    } catch (UnsupportedOperationException e) {
-                        moveFile(src, dest, false);
+                        if (moveAcross(file, targetFile, attrs, replace)) {
+                            progress.fileDone();
+                        }
+                    } catch (IOException e) {
+                        System.err.println("mv: cannot move '" + file.toString() + "': " + e.getMessage());
                     }
+                });
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("mv: cannot access '" + file.toString() + "': " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path resolve(Path path) {
+                Path relative = src.relativize(path);
+                return (relative.toString().isEmpty() ? target : target.resolve(relative.toString()));
+            }
+        });
+        copier().await();
+
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                try {
+                    Files.delete(dir);
+                } catch (DirectoryNotEmptyException notEmpty) {
+                    // holds a file that was not moved, which has been reported
+                } catch (IOException deleteException) {
+                    System.err.println("mv: cannot remove '" + dir.toString() + "': " + deleteException.getMessage());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (cmdLine.hasOption('v') && !Files.exists(src, LinkOption.NOFOLLOW_LINKS)) {
+            System.out.println("renamed '" + src.toString() + "' -> '" + target.toString() + "'");
+        }
+    }
+
+    /**
+     * Create the directory that a tree is moved to, or reuse it if it is an empty directory and
+     * may be replaced.
+     *
+     * @return false if the tree must not be moved, which has been reported
+     */
+    private static boolean createTarget(Path src, Path target, boolean replace) throws IOException {
+        try {
+            Files.createDirectory(target);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            if (!replace) {
+                System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
+                return false;
+            }
+        }
+        if (!Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+            System.err.println("mv: cannot overwrite non-directory '" + target.toString() +
+                    "' with directory '" + src.toString() + "'");
+            return false;
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(target)) {
+            if (ds.iterator().hasNext()) {
+                System.err.println("mv: cannot move '" + src.toString() + "' to '" + target.toString() +
+                        "': Directory not empty");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move a file that can not be renamed to target by copying it. A link is copied as a link if
+     * the file systems can.
+     *
+     * @return false if the file was not moved, which has been reported
+     */
+    private static boolean moveAcross(Path src, Path target, BasicFileAttributes attr, boolean replace)
+            throws IOException {
+        if (attr.isSymbolicLink()) {
+            try {
+                if (replace) {
+                    Files.copy(src, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
                 } else {
-                    try {
-                        Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
-                    } catch (UnsupportedOperationException e) {
-                        moveFile(src, dest, true);
-                    }
+                    Files.copy(src, target, LinkOption.NOFOLLOW_LINKS);
                 }
+                Files.delete(src);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
+                return false;
+            } catch (UnsupportedOperationException e) {
+                // move what it links to
             }
-        } catch (NoSuchFileException e) {
-            System.err.println("mv: cannot move '" + src.toString() + "': No such file or directory");
         }
+        return moveFile(src, target, replace);
     }
 
-    private static void moveFile(Path src, Path dest, boolean replace) throws IOException {
-        InputStream srcInputStream = new BufferedInputStream(Files.newInputStream(src, StandardOpenOption.READ));
-        OutputStream destOutputStream;
+    /**
+     * Move a file by copying its contents through FileCopier, comparing the copy with the file,
+     * and then deleting the file.
+     *
+     * @return false if the file was not moved, which has been reported
+     */
+    private static boolean moveFile(Path src, Path dest, boolean replace) throws IOException {
         if (replace) {
-            destOutputStream = new BufferedOutputStream(Files.newOutputStream(dest,
+            FileCopier.copy(src, dest, FileCopier.Sparse.AUTO, progress,
                     StandardOpenOption.WRITE,
                     StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING));
+                    StandardOpenOption.TRUNCATE_EXISTING);
         } else {
             try {
-                destOutputStream = new BufferedOutputStream(Files.newOutputStream(dest,
+                FileCopier.copy(src, dest, FileCopier.Sparse.AUTO, progress,
                         StandardOpenOption.WRITE,
-                        StandardOpenOption.CREATE_NEW));
+                        StandardOpenOption.CREATE_NEW);
             } catch (FileAlreadyExistsException e) {
                 System.err.println("mv: cannot move '" + src.toString() + "': File already exists");
-                return;
+                return false;
             }
         }
-
+        if (!FileCopier.sameContents(src, dest)) {
+            System.err.println("mv: cannot move '" + src.toString() + "': its copy '" + dest.toString() +
+                    "' differs from it");
+            return false;
+        }
         try {
-            byte[] b = new byte[1024];
-            int br = srcInputStream.read(b);
-            while (br > 0) {
-                destOutputStream.write(b, 0, br);
-                br = srcInputStream.read(b);
-            }
-        } finally {
-            srcInputStream.close();
-            destOutputStream.close();
+            Files.setLastModifiedTime(dest, Files.getLastModifiedTime(src));
+        } catch (UnsupportedOperationException e) {
+            // the copy keeps the time it was written
+        }
+        PosixFileAttributeView srcView = Files.getFileAttributeView(src, PosixFileAttributeView.class);
+        PosixFileAttributeView destView = Files.getFileAttributeView(dest, PosixFileAttributeView.class);
+        if (srcView != null && destView != null) {
+            destView.setPermissions(srcView.readAttributes().permissions());
         }
         Files.delete(src);
+        return true;
+    }
+
+    /**
+     * Add the size of a source operand, which may be a glob, to the total that --progress
+     * expects to move.
+     */
+    private static void expectSource(Path src) throws IOException {
+        if (isGlob(src.toString())) {
+            try {
+                ParseGlobResult pgr = parseGlob(src);
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(pgr.dir, pgr.fileName)) {
+                    for (Path path : ds) {
+                        progress.expect(pgr.dir.resolve(path), true);
+                    }
+                }
+            } catch (InvalidGlobException e) {
+                // reported when the files are moved
+            }
+        } else if (Files.exists(src)) {
+            progress.expect(src, true);
+        }
     }
 
     private static CommandLine parseCommandLineOptions(String[] args) {
@@ -171,6 +473,8 @@ public class mv {
         options.addOption("n", "no-clobber", false, "do not overwrite an existing file");
         options.addOption("t", "target-directory", true, "move all SOURCE arguments into directory");
         options.addOption("v", "verbose", false, "explain what is being done");
+        options.addOption(null, "jobs", true, "rename the files of a glob, or move the files of a directory to another file system, up to this many at once (default: the number of processors)");
+        options.addOption(null, "progress", false, "report the amount moved, files/s, MB/s and the time left while moving");
 
         try {
             CommandLine cmdLine = parser.parse(options, args);
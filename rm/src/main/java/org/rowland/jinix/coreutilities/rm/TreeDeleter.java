@@ -0,0 +1,216 @@
+package org.rowland.jinix.coreutilities.rm;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Deletes directory trees for rm -r on a work-stealing pool. Each directory is a task that reads
+ * the directory and forks a task for each batch of FILE_BATCH of its entries. Each entry is
+ * deleted as a file first, without reading its attributes, since most entries of a tree are
+ * files. If that fails because the entry is a directory, a task for the directory is run, and the
+ * directory is deleted once that task has emptied it, so a file costs one call to the file
+ * system and a directory is deleted only once it is empty. A directory whose contents could not
+ * all be deleted is not deleted; the failures have already been reported.
+ *
+ * When the provider returns a SecureDirectoryStream, entries are deleted and subdirectories
+ * opened relative to their open directory, so no path is looked up again from the root, and an
+ * entry that fails to delete as a file is tried as a directory. Otherwise an entry is deleted by
+ * path, and it is a directory if that fails with DirectoryNotEmptyException.
+ *
+ * A directory is only opened by its own task, once that task runs, and closed when its contents
+ * are deleted. So the directories open at once are those of the tasks that are running, about
+ * one per level of the tree on each thread, rather than every subdirectory found so far.
+ */
+class TreeDeleter {
+
+    private static final int FILE_BATCH = 64;
+
+    private final ForkJoinPool pool;
+
+    TreeDeleter(int jobs) {
+        this.pool = new ForkJoinPool(jobs);
+    }
+
+    /**
+     * Delete dir and everything below it. Errors are reported on System.err.
+     *
+     * @return true if dir was deleted
+     */
+    boolean delete(Path dir) {
+        if (!pool.invoke(new DirectoryTask(dir, null, null))) {
+            return false;
+        }
+        try {
+            Files.delete(dir);
+            return true;
+        } catch (NoSuchFileException e) {
+            return true; // removed by someone else
+        } catch (IOException e) {
+            report(dir, e);
+            return false;
+        }
+    }
+
+    private static void report(Path path, IOException e) {
+        String reason = (e instanceof DirectoryNotEmptyException ? "Directory not empty" : e.getMessage());
+        System.err.println("rm: cannot remove '" + path.toString() + "': " + reason);
+    }
+
+    /**
+     * Opens a directory, deletes its contents, but not the directory, and closes it.
+     */
+    private static class DirectoryTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 4118112855317761127L;
+
+        private final Path dir;
+        private final SecureDirectoryStream<Path> parent; // the stream to open dir relative to, or null
+        private final IOException deleteError; // why dir could not be deleted as a file, or null
+
+        DirectoryTask(Path dir, SecureDirectoryStream<Path> parent, IOException deleteError) {
+            this.dir = dir;
+            this.parent = parent;
+            this.deleteError = deleteError;
+        }
+
+        @Override
+        protected Boolean compute() {
+            DirectoryStream<Path> ds;
+            try {
+                ds = (parent != null ? parent.newDirectoryStream(dir.getFileName(), LinkOption.NOFOLLOW_LINKS) :
+                        Files.newDirectoryStream(dir));
+            } catch (NoSuchFileException e) {
+                return true; // removed by someone else
+            } catch (NotDirectoryException e) {
+                report(dir, (deleteError != null ? deleteError : e)); // not a directory, so the first error stands
+                return false;
+            } catch (IOException e) {
+                report(dir, e);
+                return false;
+            }
+
+            List<ForkJoinTask<Boolean>> children = new ArrayList<>();
+            boolean deleted = true;
+            try {
+                SecureDirectoryStream<Path> sds = (ds instanceof SecureDirectoryStream ?
+                        (SecureDirectoryStream<Path>) ds : null);
+                List<Path> entries = new ArrayList<>(FILE_BATCH);
+                for (Path entry : ds) {
+                    entries.add(entry);
+                    if (entries.size() == FILE_BATCH) {
+                        children.add(new EntriesTask(entries, sds).fork());
+                        entries = new ArrayList<>(FILE_BATCH);
+                    }
+                }
+                deleted = new EntriesTask(entries, sds).compute();
+            } catch (DirectoryIteratorException e) {
+                report(dir, e.getCause());
+                deleted = false;
+            } finally {
+                for (ForkJoinTask<Boolean> child : children) {
+                    deleted &= child.join();
+                }
+                try {
+                    ds.close();
+                } catch (IOException e) {
+                    // nothing is lost
+                }
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Deletes some entries of a directory, whose stream stays open until this task finishes.
+     * Entries that turn out to be directories are emptied by forked DirectoryTasks, and deleted
+     * once those finish.
+     */
+    private static class EntriesTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 410962497394053568L;
+
+        private final List<Path> entries;
+        private final SecureDirectoryStream<Path> sds; // the stream of their directory, or null
+
+        EntriesTask(List<Path> entries, SecureDirectoryStream<Path> sds) {
+            this.entries = entries;
+            this.sds = sds;
+        }
+
+        @Override
+        protected Boolean compute() {
+            boolean deleted = true;
+            List<Path> dirs = new ArrayList<>();
+            List<ForkJoinTask<Boolean>> contents = new ArrayList<>();
+            for (Path entry : entries) {
+                IOException deleteError;
+                try {
+                    deleteAsFile(entry);
+                    continue;
+                } catch (DirectoryNotEmptyException e) {
+                    deleteError = null;
+                } catch (IOException e) {
+                    if (sds == null) {
+                        report(entry, e);
+                        deleted = false;
+                        continue;
+                    }
+                    deleteError = e; // perhaps a directory, which its task finds out
+                }
+                dirs.add(entry);
+                contents.add(new DirectoryTask(entry, sds, deleteError).fork());
+            }
+            for (int i = 0; i < dirs.size(); i++) {
+                if (contents.get(i).join()) {
+                    deleted &= deleteDirectory(dirs.get(i));
+                } else {
+                    deleted = false;
+                }
+            }
+            return deleted;
+        }
+
+        /**
+         * Delete entry as a file. Without a SecureDirectoryStream, a directory that is not empty
+         * fails with DirectoryNotEmptyException.
+         */
+        private void deleteAsFile(Path entry) throws IOException {
+            try {
+                if (sds != null) {
+                    sds.deleteFile(entry.getFileName());
+                } else {
+                    Files.delete(entry);
+                }
+            } catch (NoSuchFileException e) {
+                // removed by someone else
+            }
+        }
+
+        private boolean deleteDirectory(Path dir) {
+            try {
+                if (sds != null) {
+                    sds.deleteDirectory(dir.getFileName());
+                } else {
+                    Files.delete(dir);
+                }
+                return true;
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                report(dir, e);
+                return false;
+            }
+        }
+    }
+}
@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -15,6 +14,8 @@ import java.util.stream.Stream;
  */
 public class rm {
 
+    private static TreeDeleter treeDeleter;
+
     public static void main(String[] args) {
         CommandLine cmdLine = parseCommandLineOptions(args);
         if (cmdLine == null) return;
@@ -26,6 +27,22 @@ public class rm {
             return;
         }
 
+        int jobs = Runtime.getRuntime().availableProcessors();
+        if (cmdLine.hasOption("jobs")) {
+            try {
+                jobs = Integer.parseInt(cmdLine.getOptionValue("jobs"));
+                if (jobs < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("rm: invalid number of jobs: "+cmdLine.getOptionValue("jobs"));
+                return;
+            }
+        }
+        if (cmdLine.hasOption("r")) {
+            treeDeleter = new TreeDeleter(jobs);
+        }
+
         argLoop:
         for (String arg: args) {
             String dir = "";
@@ -79,18 +96,16 @@ public class rm {
         }
 
         try {
-            BasicFileAttributes attr = Files.getFileAttributeView(p, BasicFileAttributeView.class).readAttributes();
+            BasicFileAttributes attr = Files.getFileAttributeView(p, BasicFileAttributeView.class,
+                    LinkOption.NOFOLLOW_LINKS).readAttributes();
             if (attr.isDirectory()) {
-                if (cmdLine.hasOption("d") || cmdLine.hasOption("r")) {
+                if (cmdLine.hasOption("r")) {
+                    treeDeleter.delete(p);
+                } else if (cmdLine.hasOption("d")) {
                     try {
                         Files.delete(p);
                     } catch (DirectoryNotEmptyException e) {
-                        if (cmdLine.hasOption("r")) {
-                            deleteDirectoryFiles(p, "*", cmdLine);
-                            Files.delete(p);
-                        } else {
-                            System.err.println("rm: cannot remove '" + p.toString() + "': Directory not empty");
-                        }
+                        System.err.println("rm: cannot remove '" + p.toString() + "': Directory not empty");
                     }
                 } else {
                     System.err.println("rm: cannot remove '" + p.toString() + "': Is a directory");
@@ -105,16 +120,28 @@ public class rm {
         }
     }
 
+    /**
+     * Delete the entries of dir that match glob. As in TreeDeleter, when the provider returns a
+     * SecureDirectoryStream, each entry is first deleted as a file relative to the open
+     * directory, without reading its attributes. Only entries that can not be deleted that way,
+     * directories and errors, go on to deleteFile() to be handled and reported.
+     */
     private static void deleteDirectoryFiles(final Path dir, String glob, CommandLine cmdLine) {
-        try {
-            DirectoryStream<Path> ds = Files.newDirectoryStream(dir,glob);
-            ds.forEach(new Consumer<Path>() {
-                @Override
-                public void accept(Path path) {
-                    deleteFile("", path.toString(), cmdLine);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, glob)) {
+            SecureDirectoryStream<Path> sds = (ds instanceof SecureDirectoryStream ?
+                    (SecureDirectoryStream<Path>) ds : null);
+            for (Path path : ds) {
+                if (sds != null) {
+                    try {
+                        sds.deleteFile(path.getFileName());
+                        continue;
+                    } catch (IOException e) {
+                        // a directory, or an error that deleteFile() reports
+                    }
                 }
-            });
-        } catch (IOException e) {
+                deleteFile("", path.toString(), cmdLine);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
             System.err.println("rm: IOException removing file: "+dir);
         }
     }
@@ -136,6 +163,7 @@ public class rm {
         options.addOption("f", "force", false, "ignore nonexistent files and arguments, never prompt");
         options.addOption("r", "recursive", false, "remove directories and their contents recursively");
         options.addOption("d", "dir", false, "don't remove empty directories");
+        options.addOption(null, "jobs", true, "with -r, remove up to this many files at once (default: the number of processors)");
         options.addOption("v", "verbose", false, "explain what is being done");
 
         try {